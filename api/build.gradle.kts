@@ -5,7 +5,6 @@ plugins {
 }
 
 repositories {
-    maven(url = "https://dl.bintray.com/vorpal-research/kotlin-maven")
     maven(url = "https://www.jetbrains.com/intellij-repository/releases")
     maven(url = "https://jetbrains.bintray.com/intellij-third-party-dependencies")
 }
@@ -49,7 +48,6 @@ dependencies {
 
     annotationProcessor("org.springframework.boot:spring-boot-configuration-processor")
 
-    implementation("com.suhininalex:suffixtree:1.0.2")
     implementation("com.jetbrains.intellij.java:java-psi-impl:202.6948.69")
     implementation("com.google.guava:guava:29.0-jre")
 }
@@ -0,0 +1,136 @@
+package org.accula.api.clone;
+
+import lombok.Value;
+import org.accula.api.code.FileEntity;
+import org.accula.api.db.model.GithubRepo;
+import org.accula.api.db.model.Snapshot;
+import org.accula.api.token.TokenStream;
+import org.springframework.lang.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Links each indexed blob to all the snapshot files that contain it,
+ * so a blob shared by many snapshots (e.g. a skeleton file shared by all the forks)
+ * is tokenized and indexed once.
+ * Files without a blob id are never shared.
+ * <p>
+ * A blob belongs to the repo of the snapshot that has linked it first, i.e. the repo it has been indexed for,
+ * so the clone class detector groups the blobs by repo (see {@link #repoOf}).
+ * Once the last file of the owning repo is unlinked, the blob is handed over to the repo of one of the remaining files,
+ * otherwise the blob would still be grouped with the repo that does not contain it anymore,
+ * and the clones of it made later in that repo would never be reported.
+ *
+ * @author Anton Lamtev
+ */
+final class BlobLinks {
+    private static final String UNIDENTIFIED_BLOB_PREFIX = "file:";
+
+    private final Map<String, Set<FileLink>> linksByBlob = new ConcurrentHashMap<>();
+    private final Map<String, GithubRepo> repoByBlob = new ConcurrentHashMap<>();
+    private final Map<Snapshot, Set<String>> blobsBySnapshot = new ConcurrentHashMap<>();
+    private final Map<String, List<MethodSpan>> methodsByBlob = new ConcurrentHashMap<>();
+    private final AtomicLong unidentifiedBlobCount = new AtomicLong();
+
+    /**
+     * @return the file with the blob as a ref if the blob has not been linked to any file yet
+     * and needs to be indexed, empty otherwise
+     */
+    Optional<FileEntity<String>> link(final FileEntity<Snapshot> file) {
+        final var blob = file.getId() != null ? file.getId() : UNIDENTIFIED_BLOB_PREFIX + unidentifiedBlobCount.incrementAndGet();
+        final var link = new FileLink(file.getRef(), file.getName());
+        blobsBySnapshot.computeIfAbsent(file.getRef(), snapshot -> ConcurrentHashMap.newKeySet()).add(blob);
+        final var isNew = new boolean[1];
+        linksByBlob.compute(blob, (b, links) -> {
+            final var blobLinks = links != null ? links : ConcurrentHashMap.<FileLink>newKeySet();
+            isNew[0] = links == null;
+            if (isNew[0]) {
+                repoByBlob.put(b, file.getRef().getRepo());
+            }
+            blobLinks.add(link);
+            return blobLinks;
+        });
+        return isNew[0] ? Optional.of(new FileEntity<>(blob, file.getName(), file.getContent(), file.getId())) : Optional.empty();
+    }
+
+    /**
+     * Unlinks all the snapshot files
+     *
+     * @param onBlobUnlinked called with each blob that is not linked to any file anymore.
+     *                       It is called before the blob can be linked again, so the blob can be safely removed from the index
+     * @param onBlobRegrouped called with each blob that has been handed over to another repo (see {@link #repoOf})
+     */
+    void unlink(final Snapshot snapshot, final Consumer<String> onBlobUnlinked, final Consumer<String> onBlobRegrouped) {
+        final var blobs = blobsBySnapshot.remove(snapshot);
+        if (blobs == null) {
+            return;
+        }
+        blobs.forEach(blob -> linksByBlob.computeIfPresent(blob, (b, links) -> {
+            links.removeIf(link -> link.getSnapshot().equals(snapshot));
+            if (!links.isEmpty()) {
+                regroupIfOwnerUnlinked(b, links, onBlobRegrouped);
+                return links;
+            }
+            methodsByBlob.remove(blob);
+            repoByBlob.remove(blob);
+            onBlobUnlinked.accept(blob);
+            return null;
+        }));
+    }
+
+    private void regroupIfOwnerUnlinked(final String blob, final Set<FileLink> links, final Consumer<String> onBlobRegrouped) {
+        final var owner = repoByBlob.get(blob);
+        if (links.stream().anyMatch(link -> link.getSnapshot().getRepo().equals(owner))) {
+            return;
+        }
+        repoByBlob.put(blob, links.iterator().next().getSnapshot().getRepo());
+        onBlobRegrouped.accept(blob);
+    }
+
+    /// Remembers the method lines, so the whole methods of the identical blobs can be reported as clones
+    void addMethod(final TokenStream<String> method) {
+        methodsByBlob
+                .computeIfAbsent(method.getRef(), blob -> new CopyOnWriteArrayList<>())
+                .add(new MethodSpan(method.fromLine(0), method.toLine(method.size() - 1), method.size()));
+    }
+
+    Set<String> blobsOf(final Snapshot snapshot) {
+        return blobsBySnapshot.getOrDefault(snapshot, Set.of());
+    }
+
+    Set<FileLink> linksOf(final String blob) {
+        return linksByBlob.getOrDefault(blob, Set.of());
+    }
+
+    /**
+     * @return repo the blob has been indexed for, null if the blob is not linked
+     */
+    @Nullable
+    GithubRepo repoOf(final String blob) {
+        return repoByBlob.get(blob);
+    }
+
+    List<MethodSpan> methodsOf(final String blob) {
+        return methodsByBlob.getOrDefault(blob, List.of());
+    }
+
+    @Value
+    static class FileLink {
+        Snapshot snapshot;
+        String filename;
+    }
+
+    @Value
+    static class MethodSpan {
+        int fromLine;
+        int toLine;
+        int tokenCount;
+    }
+}
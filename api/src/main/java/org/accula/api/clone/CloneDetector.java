@@ -9,6 +9,8 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.util.function.Tuple2;
 
+import java.util.List;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 /**
@@ -16,10 +18,37 @@ import java.util.function.Supplier;
  * @author Anton Lamtev
  */
 public interface CloneDetector {
-    Flux<Tuple2<CodeSnippet, CodeSnippet>> findClones(Snapshot snapshot, Flux<FileEntity<Snapshot>> files);
+    default Flux<Tuple2<CodeSnippet, CodeSnippet>> findClones(final Snapshot snapshot, final Flux<FileEntity<Snapshot>> files) {
+        return findClones(snapshot, files, file -> true);
+    }
+
+    /**
+     * Adds the files and finds the clones of the snapshot files that satisfy the target filter,
+     * so the clones of the other snapshot files, e.g. the unchanged ones, are not looked for
+     */
+    Flux<Tuple2<CodeSnippet, CodeSnippet>> findClones(Snapshot snapshot, Flux<FileEntity<Snapshot>> files, Predicate<String> targetFilter);
 
     Mono<Void> fill(Flux<FileEntity<Snapshot>> files);
 
+    /**
+     * Fills the detector with the snapshot tokens stored by the token corpus
+     * without loading and tokenizing the snapshot files
+     *
+     * @return whether the snapshot has been stored by the corpus and restored from it
+     */
+    Mono<Boolean> restore(Snapshot snapshot);
+
+    /**
+     * @return files of the snapshot without content if the token corpus stores the tokens of all of them,
+     * so they can be indexed again without loading their content, empty otherwise
+     */
+    Mono<List<FileEntity<Snapshot>>> storedFiles(Snapshot snapshot);
+
+    /**
+     * Removes the snapshot files from the detector, so they are not reported as clones anymore
+     */
+    Mono<Void> remove(Snapshot snapshot);
+
     interface ConfigProvider extends Supplier<Mono<Config>> {
         @Override
         Mono<Config> get();
@@ -31,5 +60,13 @@ public interface CloneDetector {
         int minCloneLength;
         @Builder.Default
         FileFilter filter = FileFilter.SRC_JAVA;
+        /// Engine is chosen once, when the detector is filled or queried for the first time
+        @Builder.Default
+        Engine engine = Engine.SUFFIX_TREE;
+    }
+
+    enum Engine {
+        SUFFIX_TREE,
+        SUFFIX_ARRAY,
     }
 }
@@ -1,103 +1,293 @@
 package org.accula.api.clone;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.accula.api.clone.BlobLinks.FileLink;
+import org.accula.api.clone.BlobLinks.MethodSpan;
+import org.accula.api.clone.suffixarray.SuffixArrayCloneDetector;
+import org.accula.api.clone.suffixtree.Clone;
 import org.accula.api.clone.suffixtree.CloneClass;
+import org.accula.api.clone.suffixtree.CloneClassDetector;
+import org.accula.api.clone.suffixtree.PublishedCloneClasses;
 import org.accula.api.clone.suffixtree.SuffixTreeCloneDetector;
 import org.accula.api.code.FileEntity;
-import org.accula.api.db.model.GithubRepo;
 import org.accula.api.db.model.Snapshot;
-import org.accula.api.token.Token;
+import org.accula.api.token.TokenStream;
 import org.accula.api.token.TokenProvider;
+import org.accula.api.token.corpus.CachingTokenProvider;
+import org.accula.api.token.corpus.TokenCorpus;
+import org.accula.api.token.corpus.TokenCorpus.FileBlob;
 import org.accula.api.util.Lambda;
+import org.accula.api.util.ReactorSchedulers;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 import reactor.util.function.Tuple2;
 import reactor.util.function.Tuples;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Supplier;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
 
 /**
+ * Files are indexed by their blobs (see {@link BlobLinks}), so the clone class detector refs are blob ids,
+ * and the clones are mapped back to the snapshot files containing their blobs.
+ * A blob is indexed once, so it never forms a clone class with itself:
+ * the whole methods of a target blob shared with the other repos are reported as clones explicitly.
+ * <p>
+ * Tokens of the blobs are read from the {@link TokenCorpus} if it contains them, and stored to it otherwise,
+ * so the unchanged files are never tokenized again. Files of the snapshots are stored too,
+ * so the snapshots can be restored later without git and PSI.
+ *
  * @author Anton Lamtev
  */
 @Slf4j
-@RequiredArgsConstructor
 public final class CloneDetectorImpl implements CloneDetector {
+    private static final Scheduler COMPACTION_SCHEDULER = ReactorSchedulers.boundedElastic("CloneIndexCompaction");
+    /// Token corpus reads and index changes block, so they never run on the event loop threads of the callers
+    private static final Scheduler INDEX_SCHEDULER = ReactorSchedulers.boundedElastic("CloneIndex");
     //FIXME: avoid blocking
-    private final SuffixTreeCloneDetector<Token<Snapshot>, Snapshot> suffixTreeCloneDetector = new SuffixTreeCloneDetector<>();
-    private final TokenProvider<Snapshot> tokenProvider = TokenProvider.of(TokenProvider.Language.JAVA);
+    private final AtomicReference<CloneClassDetector<String>> cloneClassDetector = new AtomicReference<>();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final BlobLinks blobLinks = new BlobLinks();
+    private final TokenProvider<String> tokenProvider;
     private final ConfigProvider configProvider;
+    private final TokenCorpus tokenCorpus;
+
+    public CloneDetectorImpl(final ConfigProvider configProvider) {
+        this(configProvider, TokenCorpus.none());
+    }
+
+    public CloneDetectorImpl(final ConfigProvider configProvider, final TokenCorpus tokenCorpus) {
+        this.configProvider = configProvider;
+        this.tokenCorpus = tokenCorpus;
+        this.tokenProvider = new CachingTokenProvider<>(TokenProvider.of(TokenProvider.Language.JAVA), tokenCorpus);
+    }
 
     @Override
-    public Flux<Tuple2<CodeSnippet, CodeSnippet>> findClones(final Snapshot snapshot, final Flux<FileEntity<Snapshot>> files) {
-        return addFilesToSuffixTree(files)
-                .thenMany(configProvider.get().flatMapMany(Lambda.passingFirstArg(this::readClonesFromSuffixTree, snapshot)));
+    public Flux<Tuple2<CodeSnippet, CodeSnippet>> findClones(final Snapshot snapshot,
+                                                             final Flux<FileEntity<Snapshot>> files,
+                                                             final Predicate<String> targetFilter) {
+        return configProvider.get()
+                .flatMapMany(config -> {
+                    final Predicate<String> targets = config.getFilter().and(targetFilter);
+                    return addFiles(files, config)
+                            .then(Mono.fromRunnable(() -> cloneClassDetector(config).flush()).subscribeOn(INDEX_SCHEDULER))
+                            .thenMany(Flux.concat(
+                                    readClones(snapshot, targets, config),
+                                    readIdenticalBlobClones(snapshot, targets, config)));
+                });
     }
 
     @Override
     public Mono<Void> fill(final Flux<FileEntity<Snapshot>> files) {
-        return addFilesToSuffixTree(files);
-    }
-
-    private Mono<Void> addFilesToSuffixTree(final Flux<FileEntity<Snapshot>> files) {
-        return tokenProvider.tokensByMethods(files)
-                .flatMap(method ->
-                        Mono.fromSupplier(() -> suffixTreeCloneDetector.addTokens(method)))
-                .then();
-    }
-
-    private Flux<Tuple2<CodeSnippet, CodeSnippet>> readClonesFromSuffixTree(final Snapshot snapshot, final Config config) {
-        final Supplier<List<CloneClass<Snapshot>>> cloneClassesSupplier = () ->
-                suffixTreeCloneDetector.cloneClassesAfterTransform(cloneClasses ->
-                        cloneClasses.filter(cloneClass ->
-                                cloneClassMatchesRules(cloneClass, config)
-                                && cloneClassContainsClonesFromCommit(cloneClass, snapshot)
-                                && cloneClassContainsClonesFromReposOtherThan(cloneClass, snapshot.getRepo())));
-
-        return Mono
-                .fromSupplier(cloneClassesSupplier)
-                .flatMapMany(Flux::fromIterable)
-                .map(cloneClass -> {
-                    //TODO: take commit date into account
-                    final var clones = cloneClass.getClones();
-                    @SuppressWarnings("OptionalGetWithoutIsPresent")//
-                    final var from = clones
-                            .stream()
-                            .filter(clone -> !clone.ref().getRepo().equals(snapshot.getRepo()))
-                            .findFirst()
-                            .get();
-                    @SuppressWarnings("OptionalGetWithoutIsPresent")//
-                    final var to = clones
+        return configProvider.get()
+                .flatMap(Lambda.passingFirstArg(this::addFiles, files));
+    }
+
+    @Override
+    public Mono<Boolean> restore(final Snapshot snapshot) {
+        return configProvider.get()
+                .flatMap(config -> Mono
+                        .fromCallable(() -> storedSnapshotFiles(snapshot)
+                                .map(files -> {
+                                    final var detector = cloneClassDetector(config);
+                                    files.forEach(file -> blobLinks
+                                            .link(file)
+                                            .ifPresent(blob -> tokenCorpus
+                                                    .methods(blob.getRef(), blob.getRef())
+                                                    .forEach(method -> addMethod(detector, method))));
+                                    return true;
+                                })
+                                .orElse(false))
+                        .subscribeOn(INDEX_SCHEDULER));
+    }
+
+    @Override
+    public Mono<List<FileEntity<Snapshot>>> storedFiles(final Snapshot snapshot) {
+        return Mono.fromCallable(() -> storedSnapshotFiles(snapshot))
+                .subscribeOn(INDEX_SCHEDULER)
+                .flatMap(Mono::justOrEmpty);
+    }
+
+    /// Index is compacted in the background once removed methods have taken a large share of it.
+    /// Removals made while the compaction is running do not start another one
+    @Override
+    public Mono<Void> remove(final Snapshot snapshot) {
+        return Mono.<Void>fromRunnable(() -> {
+            final var detector = cloneClassDetector.get();
+            if (detector == null) {
+                return;
+            }
+            blobLinks.unlink(snapshot, detector::remove, detector::regroup);
+            if (detector.needsCompaction() && compacting.compareAndSet(false, true)) {
+                Mono.fromRunnable(detector::compact)
+                        .subscribeOn(COMPACTION_SCHEDULER)
+                        .doFinally(signal -> compacting.set(false))
+                        .subscribe(ignored -> {
+                        }, e -> log.error("Failed to compact clone index", e));
+            }
+        }).subscribeOn(INDEX_SCHEDULER);
+    }
+
+    /**
+     * Only the files whose blobs have not been indexed yet are tokenized, or read from the token corpus.
+     * Methods without tokens are skipped since they cannot be cloned.
+     * The snapshots are stored once all their files have been indexed, unless some files have no blob id.
+     */
+    private Mono<Void> addFiles(final Flux<FileEntity<Snapshot>> files, final Config config) {
+        final var detector = cloneClassDetector(config);
+        final Map<Snapshot, List<FileBlob>> snapshotFiles = new ConcurrentHashMap<>();
+        final Set<Snapshot> partiallyIdentifiedSnapshots = ConcurrentHashMap.newKeySet();
+        final var newBlobs = files
+                .doOnNext(file -> {
+                    if (file.getId() == null || file.getName() == null) {
+                        partiallyIdentifiedSnapshots.add(file.getRef());
+                    } else {
+                        snapshotFiles.computeIfAbsent(file.getRef(), snapshot -> new ArrayList<>())
+                                .add(new FileBlob(file.getName(), file.getId()));
+                    }
+                })
+                .flatMap(file -> Mono.justOrEmpty(blobLinks.link(file)));
+        return tokenProvider.tokenStreams(newBlobs)
+                .filter(method -> !method.isEmpty())
+                .doOnNext(method -> addMethod(detector, method))
+                .then(Mono.fromRunnable(() -> snapshotFiles.forEach((snapshot, snapshotBlobs) -> {
+                    if (!partiallyIdentifiedSnapshots.contains(snapshot)) {
+                        tokenCorpus.addSnapshot(corpusKey(snapshot), snapshotBlobs);
+                    }
+                })));
+    }
+
+    private Optional<List<FileEntity<Snapshot>>> storedSnapshotFiles(final Snapshot snapshot) {
+        return tokenCorpus
+                .files(corpusKey(snapshot))
+                .filter(files -> files.stream().allMatch(file -> tokenCorpus.containsBlob(file.getBlob())))
+                .map(files -> files
+                        .stream()
+                        .map(file -> new FileEntity<>(snapshot, file.getName(), null, file.getBlob()))
+                        .collect(toList()));
+    }
+
+    private void addMethod(final CloneClassDetector<String> detector, final TokenStream<String> method) {
+        blobLinks.addMethod(method);
+        detector.addTokens(method);
+    }
+
+    private Flux<Tuple2<CodeSnippet, CodeSnippet>> readClones(final Snapshot snapshot,
+                                                              final Predicate<String> targets,
+                                                              final Config config) {
+        final var detector = cloneClassDetector(config);
+        return Flux
+                .fromIterable(blobLinks.blobsOf(snapshot))
+                .filter(blob -> targetLink(blob, snapshot, targets).isPresent())
+                .map(blob -> detector.cloneClassesAfterTransform(blob, config.getMinCloneLength(), cloneClasses ->
+                        cloneClasses.filter(cloneClass -> cloneClassMatchesRules(cloneClass, config))))
+                .doOnNext(cloneClasses -> {
+                    if (cloneClasses.isStale()) {
+                        log.debug("Clones of {} have been read from generation {} with {} changes pending",
+                                snapshot, cloneClasses.getGeneration(), cloneClasses.getPendingChangeCount());
+                    }
+                })
+                .flatMapIterable(PublishedCloneClasses::getCloneClasses)
+                .distinct()
+                .flatMap(cloneClass -> Mono.justOrEmpty(snippets(cloneClass, snapshot, targets)));
+    }
+
+    /**
+     * @return the first clone of the snapshot target files and the first clone from a repo other than the snapshot one
+     * among the files containing the clone class blobs
+     */
+    private Optional<Tuple2<CodeSnippet, CodeSnippet>> snippets(final CloneClass<String> cloneClass,
+                                                                final Snapshot snapshot,
+                                                                final Predicate<String> targets) {
+        //TODO: take commit date into account
+        final var clones = cloneClass.getClones();
+        final var to = clones
+                .stream()
+                .flatMap(clone -> linkedSnippets(clone)
+                        .filter(snippet -> snippet.getSnapshot().equals(snapshot) && targets.test(snippet.getFile())))
+                .findFirst();
+        final var from = clones
+                .stream()
+                .flatMap(clone -> linkedSnippets(clone)
+                        .filter(snippet -> !snippet.getSnapshot().getRepo().equals(snapshot.getRepo())))
+                .findFirst();
+        return to.flatMap(toSnippet -> from.map(fromSnippet -> Tuples.of(toSnippet, fromSnippet)));
+    }
+
+    private Stream<CodeSnippet> linkedSnippets(final Clone<String> clone) {
+        return blobLinks
+                .linksOf(clone.ref())
+                .stream()
+                .map(link -> new CodeSnippet(link.getSnapshot(), link.getFilename(), clone.getFromLine(), clone.getToLine()));
+    }
+
+    /// Each method of the snapshot blob is a clone of the same method in the files of the other repos containing that blob
+    private Flux<Tuple2<CodeSnippet, CodeSnippet>> readIdenticalBlobClones(final Snapshot snapshot,
+                                                                           final Predicate<String> targets,
+                                                                           final Config config) {
+        return Flux
+                .fromIterable(blobLinks.blobsOf(snapshot))
+                .flatMap(blob -> {
+                    final var to = targetLink(blob, snapshot, targets);
+                    final var from = blobLinks
+                            .linksOf(blob)
                             .stream()
-                            .filter(clone -> clone.ref().equals(snapshot))
-                            .findFirst()
-                            .get();
-                    return Tuples.of(
-                            new CodeSnippet(to.ref(), to.filename(), to.getFromLine(), to.getToLine()),
-                            new CodeSnippet(from.ref(), from.filename(), from.getFromLine(), from.getToLine()));
+                            .filter(link -> !link.getSnapshot().getRepo().equals(snapshot.getRepo()))
+                            .findFirst();
+                    if (to.isEmpty() || from.isEmpty()) {
+                        return Flux.<Tuple2<CodeSnippet, CodeSnippet>>empty();
+                    }
+                    return Flux
+                            .fromIterable(blobLinks.methodsOf(blob))
+                            .filter(method -> method.getTokenCount() >= config.getMinCloneLength())
+                            .map(method -> Tuples.of(snippet(to.get(), method), snippet(from.get(), method)));
                 });
     }
 
-    private static boolean cloneClassMatchesRules(final CloneClass<Snapshot> cloneClass, final Config rules) {
-        return cloneClass.getLength() >= rules.getMinCloneLength()
-               && cloneClass
-                       .getClones()
-                       .stream()
-                       .anyMatch(clone -> rules.getFilter().test(clone.getStart().getFilename()));
+    private Optional<FileLink> targetLink(final String blob, final Snapshot snapshot, final Predicate<String> targets) {
+        return blobLinks
+                .linksOf(blob)
+                .stream()
+                .filter(link -> link.getSnapshot().equals(snapshot) && targets.test(link.getFilename()))
+                .findFirst();
     }
 
-    private static boolean cloneClassContainsClonesFromCommit(final CloneClass<Snapshot> cloneClass, final Snapshot commit) {
-        return cloneClass
-                .getClones()
-                .stream()
-                .anyMatch(clone -> clone.ref().equals(commit));
+    private CloneClassDetector<String> cloneClassDetector(final Config config) {
+        return cloneClassDetector.updateAndGet(current -> current != null ? current : newCloneClassDetector(config.getEngine()));
+    }
+
+    /// Blobs are grouped by repo, so the detector skips the clone classes of a single repo without visiting them
+    private CloneClassDetector<String> newCloneClassDetector(final Engine engine) {
+        return switch (engine) {
+            case SUFFIX_TREE -> new SuffixTreeCloneDetector<>(blobLinks::repoOf, false);
+            case SUFFIX_ARRAY -> new SuffixArrayCloneDetector<>(blobLinks::repoOf);
+        };
+    }
+
+    private static String corpusKey(final Snapshot snapshot) {
+        final var id = snapshot.getId();
+        return id.getRepoId() + "/" + id.getSha();
+    }
+
+    private static CodeSnippet snippet(final FileLink link, final MethodSpan method) {
+        return new CodeSnippet(link.getSnapshot(), link.getFilename(), method.getFromLine(), method.getToLine());
     }
 
-    private static boolean cloneClassContainsClonesFromReposOtherThan(final CloneClass<Snapshot> cloneClass, final GithubRepo repo) {
+    /// Length is checked by the detector before the clone class is materialized, repos are checked by the links
+    private static boolean cloneClassMatchesRules(final CloneClass<String> cloneClass, final Config rules) {
         return cloneClass
                 .getClones()
                 .stream()
-                .anyMatch(clone -> !clone.ref().getRepo().equals(repo));
+                .anyMatch(clone -> rules.getFilter().test(clone.filename()));
     }
 }
@@ -0,0 +1,226 @@
+package org.accula.api.clone.suffixarray;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Suffix array of an int text built with the SA-IS algorithm, and its LCP array built with Kasai's algorithm,
+ * both in linear time.
+ *
+ * @author Anton Lamtev
+ */
+final class SuffixArray {
+    private static final int NAIVE_THRESHOLD = 10;
+
+    private final int[] suffixes;
+    private final int[] ranks;
+    private final int[] lcp;
+
+    private SuffixArray(final int[] suffixes, final int[] ranks, final int[] lcp) {
+        this.suffixes = suffixes;
+        this.ranks = ranks;
+        this.lcp = lcp;
+    }
+
+    /**
+     * @param text  symbols in range [0, upper]
+     * @param upper the greatest symbol of the alphabet
+     */
+    static SuffixArray of(final int[] text, final int upper) {
+        final var suffixes = sais(text, upper);
+        final var ranks = new int[suffixes.length];
+        for (int rank = 0; rank < suffixes.length; ++rank) {
+            ranks[suffixes[rank]] = rank;
+        }
+        return new SuffixArray(suffixes, ranks, lcp(text, suffixes, ranks));
+    }
+
+    int size() {
+        return suffixes.length;
+    }
+
+    /**
+     * @return text position of the suffix of the given rank
+     */
+    int suffix(final int rank) {
+        return suffixes[rank];
+    }
+
+    /**
+     * @return rank of the suffix starting at the text position
+     */
+    int rank(final int position) {
+        return ranks[position];
+    }
+
+    /**
+     * @return length of the longest common prefix of the suffixes of ranks {@code rank} and {@code rank + 1}
+     */
+    int lcp(final int rank) {
+        return lcp[rank];
+    }
+
+    private static int[] lcp(final int[] text, final int[] suffixes, final int[] ranks) {
+        final int n = text.length;
+        if (n == 0) {
+            return new int[0];
+        }
+        final var lcp = new int[n - 1];
+        int h = 0;
+        for (int i = 0; i < n; ++i) {
+            if (h > 0) {
+                --h;
+            }
+            if (ranks[i] == 0) {
+                continue;
+            }
+            final int j = suffixes[ranks[i] - 1];
+            while (j + h < n && i + h < n && text[j + h] == text[i + h]) {
+                ++h;
+            }
+            lcp[ranks[i] - 1] = h;
+        }
+        return lcp;
+    }
+
+    private static int[] sais(final int[] text, final int upper) {
+        final int n = text.length;
+        if (n < NAIVE_THRESHOLD) {
+            return naive(text);
+        }
+
+        /// L/S types: isS[i] iff the suffix i is smaller than the suffix i + 1
+        final var isS = new boolean[n];
+        for (int i = n - 2; i >= 0; --i) {
+            isS[i] = text[i] == text[i + 1] ? isS[i + 1] : text[i] < text[i + 1];
+        }
+        /// Bucket bounds: sumS[c] is the start of the S-part, sumL[c] is the start of the whole bucket of c
+        final var sumL = new int[upper + 2];
+        final var sumS = new int[upper + 2];
+        for (int i = 0; i < n; ++i) {
+            if (isS[i]) {
+                ++sumL[text[i] + 1];
+            } else {
+                ++sumS[text[i]];
+            }
+        }
+        for (int c = 0; c <= upper; ++c) {
+            sumS[c] += sumL[c];
+            sumL[c + 1] += sumS[c];
+        }
+
+        final var lmsMap = new int[n + 1];
+        Arrays.fill(lmsMap, -1);
+        int m = 0;
+        for (int i = 1; i < n; ++i) {
+            if (!isS[i - 1] && isS[i]) {
+                lmsMap[i] = m++;
+            }
+        }
+        final var lms = new int[m];
+        for (int i = 1, j = 0; i < n; ++i) {
+            if (!isS[i - 1] && isS[i]) {
+                lms[j++] = i;
+            }
+        }
+
+        final var suffixes = new int[n];
+        induce(text, upper, isS, sumL, sumS, lms, suffixes);
+
+        if (m > 0) {
+            final var sortedLms = new int[m];
+            for (int i = 0, j = 0; i < n; ++i) {
+                if (lmsMap[suffixes[i]] != -1) {
+                    sortedLms[j++] = suffixes[i];
+                }
+            }
+            /// Names LMS substrings by their order, equal substrings get equal names
+            final var reduced = new int[m];
+            int reducedUpper = 0;
+            reduced[lmsMap[sortedLms[0]]] = 0;
+            for (int i = 1; i < m; ++i) {
+                int l = sortedLms[i - 1];
+                int r = sortedLms[i];
+                final int endL = lmsMap[l] + 1 < m ? lms[lmsMap[l] + 1] : n;
+                final int endR = lmsMap[r] + 1 < m ? lms[lmsMap[r] + 1] : n;
+                boolean same = true;
+                if (endL - l != endR - r) {
+                    same = false;
+                } else {
+                    while (l < endL && text[l] == text[r]) {
+                        ++l;
+                        ++r;
+                    }
+                    if (l == n || text[l] != text[r]) {
+                        same = false;
+                    }
+                }
+                if (!same) {
+                    ++reducedUpper;
+                }
+                reduced[lmsMap[sortedLms[i]]] = reducedUpper;
+            }
+
+            final var reducedSuffixes = sais(reduced, reducedUpper);
+            for (int i = 0; i < m; ++i) {
+                sortedLms[i] = lms[reducedSuffixes[i]];
+            }
+            induce(text, upper, isS, sumL, sumS, sortedLms, suffixes);
+        }
+
+        return suffixes;
+    }
+
+    private static void induce(final int[] text,
+                               final int upper,
+                               final boolean[] isS,
+                               final int[] sumL,
+                               final int[] sumS,
+                               final int[] lms,
+                               final int[] suffixes) {
+        final int n = text.length;
+        Arrays.fill(suffixes, -1);
+        final var buckets = new int[upper + 2];
+        System.arraycopy(sumS, 0, buckets, 0, buckets.length);
+        for (final int position : lms) {
+            if (position != n) {
+                suffixes[buckets[text[position]]++] = position;
+            }
+        }
+        System.arraycopy(sumL, 0, buckets, 0, buckets.length);
+        suffixes[buckets[text[n - 1]]++] = n - 1;
+        for (int i = 0; i < n; ++i) {
+            final int position = suffixes[i];
+            if (position >= 1 && !isS[position - 1]) {
+                suffixes[buckets[text[position - 1]]++] = position - 1;
+            }
+        }
+        System.arraycopy(sumL, 0, buckets, 0, buckets.length);
+        for (int i = n - 1; i >= 0; --i) {
+            final int position = suffixes[i];
+            if (position >= 1 && isS[position - 1]) {
+                suffixes[--buckets[text[position - 1] + 1]] = position - 1;
+            }
+        }
+    }
+
+    private static int[] naive(final int[] text) {
+        final int n = text.length;
+        return IntStream
+                .range(0, n)
+                .boxed()
+                .sorted((l, r) -> {
+                    if (l.equals(r)) {
+                        return 0;
+                    }
+                    for (int i = l, j = r; i < n && j < n; ++i, ++j) {
+                        if (text[i] != text[j]) {
+                            return Integer.compare(text[i], text[j]);
+                        }
+                    }
+                    return Integer.compare(r, l);
+                })
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+}
@@ -0,0 +1,458 @@
+package org.accula.api.clone.suffixarray;
+
+import org.accula.api.clone.suffixtree.CloneClass;
+import org.accula.api.clone.suffixtree.CloneClassDetector;
+import org.accula.api.clone.suffixtree.MethodTokens;
+import org.accula.api.clone.suffixtree.PublishedCloneClasses;
+import org.accula.api.token.TokenStream;
+import org.accula.api.util.LeftRight;
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Clone detection engine that indexes the method corpus with a suffix array and an LCP array
+ * instead of a suffix tree and reports exactly the same clone classes as
+ * {@link org.accula.api.clone.suffixtree.SuffixTreeCloneDetector} does.
+ * <p>
+ * Adding and removing methods only changes the corpus, the index is not touched by the writer.
+ * Instead, {@link #flush()} rebuilds the corpus of the live methods and its index once if the corpus has changed since
+ * the last rebuild. The rebuild is linear in the size of the whole live corpus, and it runs without holding
+ * the writer lock (see {@link LeftRight#rebuild}), so the changes are never blocked by it.
+ * Queries read the index of the last rebuild, so the changes made after the last {@link #flush()} are not visible to them
+ * (see {@link PublishedCloneClasses#getPendingChangeCount()}), and the methods removed before it never affect the results.
+ * Compaction is the same rebuild, so {@link #flush()} waits for the compaction in progress, if any.
+ * <p>
+ * The corpus is kept in two copies (see {@link LeftRight}): queries read the published one and its index without locking,
+ * while the batched changes are applied to the other one. The method tokens and the index are immutable and shared
+ * by the copies, so only the small per-method tables are kept twice. A rebuild briefly keeps one more index.
+ *
+ * @author Anton Lamtev
+ */
+public final class SuffixArrayCloneDetector<Ref> implements CloneClassDetector<Ref> {
+    private static final int NONE = -1;
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private final Function<Ref, ?> groupOf;
+    private final LeftRight<Corpus<Ref>> corpus = new LeftRight<>(Corpus::new);
+
+    public SuffixArrayCloneDetector() {
+        this(Function.identity());
+    }
+
+    /**
+     * @param groupOf group of the ref (e.g. a repo of a snapshot), clones from the same group are not reported
+     *                by the ref-scoped lookup
+     */
+    public SuffixArrayCloneDetector(final Function<Ref, ?> groupOf) {
+        this.groupOf = groupOf;
+    }
+
+    @Override
+    public void addTokens(final TokenStream<Ref> tokens) {
+        if (tokens.isEmpty()) {
+            return;
+        }
+        final var method = MethodTokens.of(tokens);
+        corpus.submit(copy -> copy.add(method));
+    }
+
+    @Override
+    public void remove(final Ref ref) {
+        corpus.submit(copy -> copy.remove(ref));
+    }
+
+    /// Groups are taken by the queries, so the index does not depend on them
+    @Override
+    public void regroup(final Ref ref) {
+    }
+
+    @Override
+    public void flush() {
+        corpus.flush();
+        corpus.rebuild(Corpus::unindexedLiveMethods, Corpus::of, Corpus::copy);
+    }
+
+    @Override
+    public boolean needsCompaction() {
+        return corpus.read(Corpus::needsCompaction);
+    }
+
+    @Override
+    public void compact() {
+        if (corpus.read(copy -> copy.deadTokenCount == 0L)) {
+            return;
+        }
+        corpus.rebuild(Corpus::liveMethods, Corpus::of, Corpus::copy);
+    }
+
+    @Override
+    public PublishedCloneClasses<Ref> cloneClassesAfterTransform(
+            final Function<Stream<CloneClass<Ref>>, Stream<CloneClass<Ref>>> transform) {
+        return corpus.readGeneration((copy, generation) ->
+                published(transform.apply(cloneClasses(copy, copy.index)), copy, generation));
+    }
+
+    @Override
+    public PublishedCloneClasses<Ref> cloneClassesAfterTransform(
+            final Ref ref,
+            final int minLength,
+            final Function<Stream<CloneClass<Ref>>, Stream<CloneClass<Ref>>> transform) {
+        return corpus.readGeneration((copy, generation) ->
+                published(transform.apply(cloneClasses(copy, copy.index, ref, minLength)), copy, generation));
+    }
+
+    /// Clone classes are collected while the generation is being read since the stream is lazy.
+    /// The changes published but not indexed yet are pending for the queries too
+    private PublishedCloneClasses<Ref> published(final Stream<CloneClass<Ref>> cloneClasses,
+                                                 final Corpus<Ref> copy,
+                                                 final long generation) {
+        final long unindexedChangeCount = copy.version - copy.index.version;
+        return new PublishedCloneClasses<>(cloneClasses.collect(toList()), generation, corpus.pendingChangeCount() + unindexedChangeCount);
+    }
+
+    /**
+     * Traverses LCP intervals bottom-up, each interval [lb, rb] with the LCP value l is
+     * an internal node of the corresponding suffix tree with the string depth l.
+     * Interval is a clone class iff each of its suffixes ends with a terminal right after the common prefix
+     * (i.e. all the node children are terminal leaves), and the first occurrence of its first symbol
+     * is a sequence start (i.e. the node lies in the subtree of a root child whose edge starts a sequence).
+     */
+    private Stream<CloneClass<Ref>> cloneClasses(final Corpus<Ref> copy, final Index index) {
+        final var cloneClasses = Stream.<CloneClass<Ref>>builder();
+        final int n = index.suffixArray.size();
+        /// Stack of open intervals: LCP value, left bound and whether the interval has child intervals
+        final var lcps = new int[n + 1];
+        final var leftBounds = new int[n + 1];
+        final var hasChildIntervals = new boolean[n + 1];
+        int top = 0;
+        lcps[0] = 0;
+        leftBounds[0] = 0;
+        hasChildIntervals[0] = false;
+        for (int i = 1; i <= n; ++i) {
+            final int lcp = i < n ? index.suffixArray.lcp(i - 1) : 0;
+            int leftBound = i - 1;
+            boolean lastIntervalPopped = false;
+            while (lcp < lcps[top]) {
+                if (!hasChildIntervals[top]) {
+                    final var cloneClass = cloneClass(copy, index, lcps[top], leftBounds[top], i - 1);
+                    if (cloneClass != null) {
+                        cloneClasses.add(cloneClass);
+                    }
+                }
+                leftBound = leftBounds[top];
+                --top;
+                lastIntervalPopped = true;
+                if (lcp <= lcps[top]) {
+                    hasChildIntervals[top] = true;
+                    lastIntervalPopped = false;
+                }
+            }
+            if (lcp > lcps[top]) {
+                ++top;
+                lcps[top] = lcp;
+                leftBounds[top] = leftBound;
+                hasChildIntervals[top] = lastIntervalPopped;
+            }
+        }
+        return cloneClasses.build();
+    }
+
+    /// LCP value of the interval equals the suffix length, so the suffixes shorter than minLength are skipped at all
+    private Stream<CloneClass<Ref>> cloneClasses(final Corpus<Ref> copy, final Index index, final Ref ref, final int minLength) {
+        final var group = groupOf.apply(ref);
+        return copy.methodIdsByRef
+                .getOrDefault(ref, List.of())
+                .stream()
+                .mapToInt(index::sequenceOfMethod)
+                .filter(sequence -> sequence != NONE)
+                .flatMap(sequence -> IntStream.rangeClosed(
+                        index.sequenceStarts[sequence],
+                        index.sequenceStarts[sequence + 1] - 1 - Math.max(minLength, 1)))
+                .map(position -> cloneIntervalLeftBound(copy, index, position, group))
+                .filter(leftBound -> leftBound != NONE)
+                .distinct()
+                .mapToObj(leftBound -> {
+                    final int length = index.remainingLength(index.suffixArray.suffix(leftBound));
+                    return cloneClass(copy, index, length, leftBound, rightBound(index, leftBound, length));
+                })
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * Terminals are less than any token type, so suffixes that end with a terminal right after the common prefix
+     * precede the other ones within an LCP interval. Thus, the interval of the suffix starting at the position
+     * is a clone class iff its right neighbours sharing the whole suffix end with a terminal too.
+     *
+     * @return left bound of the clone class interval of the suffix starting at the position
+     * if it has clones from groups other than the given one, {@link #NONE} otherwise
+     */
+    private int cloneIntervalLeftBound(final Corpus<Ref> copy, final Index index, final int position, @Nullable final Object group) {
+        if (!index.isSequenceStart(index.firstOccurrence(index.text[position]))) {
+            return NONE;
+        }
+        final int length = index.remainingLength(position);
+        final int rank = index.suffixArray.rank(position);
+        boolean hasClonesFromOtherGroups = false;
+        int rightBound = rank;
+        while (rightBound + 1 < index.suffixArray.size() && index.suffixArray.lcp(rightBound) >= length) {
+            ++rightBound;
+            final int suffix = index.suffixArray.suffix(rightBound);
+            if (index.remainingLength(suffix) != length) {
+                return NONE;
+            }
+            hasClonesFromOtherGroups |= !isFromGroup(copy, index, suffix, group);
+        }
+        int leftBound = rank;
+        while (leftBound > 0 && index.suffixArray.lcp(leftBound - 1) >= length) {
+            --leftBound;
+            hasClonesFromOtherGroups |= !isFromGroup(copy, index, index.suffixArray.suffix(leftBound), group);
+        }
+        return hasClonesFromOtherGroups ? leftBound : NONE;
+    }
+
+    private boolean isFromGroup(final Corpus<Ref> copy, final Index index, final int position, @Nullable final Object group) {
+        return Objects.equals(group, groupOf.apply(copy.methods.get(index.methodIds[index.sequenceOf(position)]).getRef()));
+    }
+
+    private static int rightBound(final Index index, final int rank, final int length) {
+        int rightBound = rank;
+        while (rightBound + 1 < index.suffixArray.size() && index.suffixArray.lcp(rightBound) >= length) {
+            ++rightBound;
+        }
+        return rightBound;
+    }
+
+    @Nullable
+    private CloneClass<Ref> cloneClass(final Corpus<Ref> copy,
+                                       final Index index,
+                                       final int length,
+                                       final int leftBound,
+                                       final int rightBound) {
+        if (!index.isSequenceStart(index.firstOccurrence(index.text[index.suffixArray.suffix(leftBound)]))) {
+            return null;
+        }
+        for (int rank = leftBound; rank <= rightBound; ++rank) {
+            if (index.remainingLength(index.suffixArray.suffix(rank)) != length) {
+                return null;
+            }
+        }
+        final var methodIds = IntStream
+                .rangeClosed(leftBound, rightBound)
+                .map(rank -> index.methodIds[index.sequenceOf(index.suffixArray.suffix(rank))]);
+        return CloneClass.of(length, methodIds, copy.methods);
+    }
+
+    /**
+     * One copy of the method corpus. Changes are applied to both copies in the same order,
+     * so the method ids and the versions are the same in both of them.
+     * Method ids are never reused until the corpus is rebuilt, so the index of an earlier version still refers
+     * to the right methods.
+     */
+    private static final class Corpus<Ref> {
+        List<MethodTokens<Ref>> methods = new ArrayList<>();
+        Map<Ref, List<Integer>> methodIdsByRef = new HashMap<>();
+        BitSet tombstones = new BitSet();
+        long tokenCount;
+        long deadTokenCount;
+        /// Incremented on each change
+        long version;
+        /// Index of the version the corpus has been rebuilt with, immutable, so both copies share it
+        Index index = Index.of(List.of(), new BitSet(), 0L);
+
+        void add(final MethodTokens<Ref> method) {
+            methodIdsByRef.computeIfAbsent(method.getRef(), ref -> new ArrayList<>()).add(methods.size());
+            tokenCount += method.size();
+            ++version;
+            methods.add(method);
+        }
+
+        void remove(final Ref ref) {
+            final var methodIds = methodIdsByRef.remove(ref);
+            if (methodIds == null) {
+                return;
+            }
+            for (final int methodId : methodIds) {
+                tombstones.set(methodId);
+                deadTokenCount += methods.get(methodId).size();
+            }
+            ++version;
+        }
+
+        boolean needsCompaction() {
+            return deadTokenCount > tokenCount * COMPACTION_THRESHOLD;
+        }
+
+        @Nullable
+        LiveMethods<Ref> unindexedLiveMethods() {
+            return index.version == version ? null : liveMethods();
+        }
+
+        /// Methods are immutable, so they are shared with the compacted copies
+        LiveMethods<Ref> liveMethods() {
+            final var liveMethods = IntStream
+                    .range(0, methods.size())
+                    .filter(methodId -> !tombstones.get(methodId))
+                    .mapToObj(methods::get)
+                    .collect(toList());
+            return new LiveMethods<>(liveMethods, tokenCount - deadTokenCount, version + 1);
+        }
+
+        /// Compacted corpus of the live methods
+        static <Ref> Corpus<Ref> of(final LiveMethods<Ref> live) {
+            final var corpus = new Corpus<Ref>();
+            corpus.methods = new ArrayList<>(live.methods);
+            for (int methodId = 0; methodId < live.methods.size(); ++methodId) {
+                corpus.methodIdsByRef.computeIfAbsent(live.methods.get(methodId).getRef(), ref -> new ArrayList<>()).add(methodId);
+            }
+            corpus.tokenCount = live.tokenCount;
+            corpus.version = live.version;
+            corpus.index = Index.of(live.methods, new BitSet(), live.version);
+            return corpus;
+        }
+
+        /// Copy sharing the immutable methods and index with this one
+        Corpus<Ref> copy() {
+            final var copy = new Corpus<Ref>();
+            copy.methods = new ArrayList<>(methods);
+            methodIdsByRef.forEach((ref, methodIds) -> copy.methodIdsByRef.put(ref, new ArrayList<>(methodIds)));
+            copy.tombstones = (BitSet) tombstones.clone();
+            copy.tokenCount = tokenCount;
+            copy.deadTokenCount = deadTokenCount;
+            copy.version = version;
+            copy.index = index;
+            return copy;
+        }
+    }
+
+    private static final class LiveMethods<Ref> {
+        final List<MethodTokens<Ref>> methods;
+        final long tokenCount;
+        final long version;
+
+        LiveMethods(final List<MethodTokens<Ref>> methods, final long tokenCount, final long version) {
+            this.methods = methods;
+            this.tokenCount = tokenCount;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Suffix array over the concatenation of the live method token type sequences.
+     * Each sequence is closed with a unique terminal, terminals take the symbols [0, sequenceCount)
+     * and token types are shifted by sequenceCount.
+     */
+    private static final class Index {
+        final long version;
+        final int[] methodIds;
+        final int[] sequencesOfMethods;
+        final int[] text;
+        final int[] sequenceStarts;
+        final int[] firstOccurrences;
+        final SuffixArray suffixArray;
+
+        private Index(final long version,
+                      final int[] methodIds,
+                      final int[] sequencesOfMethods,
+                      final int[] text,
+                      final int[] sequenceStarts,
+                      final int[] firstOccurrences,
+                      final int upper) {
+            this.version = version;
+            this.methodIds = methodIds;
+            this.sequencesOfMethods = sequencesOfMethods;
+            this.text = text;
+            this.sequenceStarts = sequenceStarts;
+            this.firstOccurrences = firstOccurrences;
+            this.suffixArray = SuffixArray.of(text, upper);
+        }
+
+        static Index of(final List<? extends MethodTokens<?>> methods, final BitSet tombstones, final long version) {
+            final var methodIds = IntStream
+                    .range(0, methods.size())
+                    .filter(methodId -> !tombstones.get(methodId))
+                    .toArray();
+            final var sequencesOfMethods = new int[methods.size()];
+            Arrays.fill(sequencesOfMethods, NONE);
+            final int sequenceCount = methodIds.length;
+            final var sequenceStarts = new int[sequenceCount + 1];
+            int maxType = -1;
+            for (int sequence = 0; sequence < sequenceCount; ++sequence) {
+                sequencesOfMethods[methodIds[sequence]] = sequence;
+                final var types = methods.get(methodIds[sequence]).types();
+                sequenceStarts[sequence + 1] = sequenceStarts[sequence] + types.length + 1;
+                for (final int type : types) {
+                    maxType = Math.max(maxType, type);
+                }
+            }
+            final var text = new int[sequenceStarts[sequenceCount]];
+            final var firstOccurrences = new int[sequenceCount + maxType + 1];
+            Arrays.fill(firstOccurrences, -1);
+            for (int sequence = 0; sequence < sequenceCount; ++sequence) {
+                final var types = methods.get(methodIds[sequence]).types();
+                final int start = sequenceStarts[sequence];
+                for (int i = 0; i < types.length; ++i) {
+                    final int symbol = types[i] + sequenceCount;
+                    text[start + i] = symbol;
+                    if (firstOccurrences[symbol] == -1) {
+                        firstOccurrences[symbol] = start + i;
+                    }
+                }
+                text[start + types.length] = sequence;
+            }
+            return new Index(version, methodIds, sequencesOfMethods, text, sequenceStarts, firstOccurrences,
+                    Math.max(sequenceCount + maxType, 0));
+        }
+
+        /**
+         * @return sequence of the method or {@link #NONE} if the method is not indexed
+         */
+        int sequenceOfMethod(final int methodId) {
+            return methodId < sequencesOfMethods.length ? sequencesOfMethods[methodId] : NONE;
+        }
+
+        int sequenceCount() {
+            return sequenceStarts.length - 1;
+        }
+
+        int firstOccurrence(final int symbol) {
+            return firstOccurrences[symbol];
+        }
+
+        int sequenceOf(final int position) {
+            int low = 0;
+            int high = sequenceCount() - 1;
+            while (low < high) {
+                final int mid = (low + high + 1) >>> 1;
+                if (sequenceStarts[mid] <= position) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        boolean isSequenceStart(final int position) {
+            return sequenceStarts[sequenceOf(position)] == position;
+        }
+
+        /**
+         * @return number of non-terminal symbols from the position to the end of its sequence
+         */
+        int remainingLength(final int position) {
+            return sequenceStarts[sequenceOf(position) + 1] - 1 - position;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+@NonNullApi
+package org.accula.api.clone.suffixarray;
+
+import org.springframework.lang.NonNullApi;
@@ -1,11 +1,10 @@
 package org.accula.api.clone.suffixtree;
 
-import com.suhininalex.suffixtree.Node;
-import lombok.Getter;
 import lombok.ToString;
 import lombok.Value;
 
 import java.util.List;
+import java.util.stream.IntStream;
 
 import static java.util.stream.Collectors.toList;
 
@@ -14,33 +13,38 @@ import static java.util.stream.Collectors.toList;
  */
 @Value
 public class CloneClass<Ref> {
+    int length;
     @ToString.Exclude
-    Node node;
-    @Getter(lazy = true)
-    int length = length();
-    @ToString.Exclude
-    @Getter(lazy = true)
-    List<Clone<Ref>> clones = clones();
+    List<Clone<Ref>> clones;
 
-    private int length() {
-        return SuffixTreeUtils.parentEdges(node)
-                .mapToInt(SuffixTreeUtils::length)
-                .sum();
+    /**
+     * Orders clones by the sequence id, so that the result does not depend on the index traversal order
+     *
+     * @param sequences ids of the sequences whose last {@code length} tokens form a clone
+     * @param methods   all the indexed methods by the sequence id
+     */
+    public static <Ref> CloneClass<Ref> of(final int length, final IntStream sequences, final List<MethodTokens<Ref>> methods) {
+        return new CloneClass<>(length, sequences
+                .sorted()
+                .mapToObj(methods::get)
+                .collect(toList()));
     }
 
-    private List<Clone<Ref>> clones() {
-        return SuffixTreeUtils.terminalMap(node)
-                .entrySet()
+    /**
+     * @param methods methods whose last {@code length} tokens form a clone
+     */
+    private CloneClass(final int length, final List<MethodTokens<Ref>> methods) {
+        this.length = length;
+        this.clones = methods
                 .stream()
-                .map(entry -> {
-                    final var edge = entry.getKey();
-                    final var offset = entry.getValue();
-                    final var to = edge.getEnd() - offset;
-                    final var from = to - getLength() + 1;
+                .map(method -> {
+                    final var to = method.size() - 1;
+                    final var from = to - length + 1;
                     return Clone.<Ref>builder()
                             .parent(this)
-                            .end(SuffixTreeUtils.get(edge, to))
-                            .start(SuffixTreeUtils.get(edge, from))
+                            .method(method)
+                            .from(from)
+                            .to(to)
                             .build();
                 })
                 .collect(toList());
@@ -0,0 +1,75 @@
+package org.accula.api.clone.suffixtree;
+
+import org.accula.api.token.Token;
+import org.accula.api.token.TokenStream;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Token-level clone detection engine that indexes methods token by token
+ * and reports {@link CloneClass}es found among them.
+ * <p>
+ * Changes are published to the readers in batches as immutable-for-readers generations of the index,
+ * so queries never wait for writers, but they may miss the changes not published yet.
+ * {@link #flush()} makes all the changes submitted so far visible to the subsequent queries.
+ *
+ * @author Anton Lamtev
+ */
+public interface CloneClassDetector<Ref> {
+    /**
+     * Indexes the method by the process-wide type ids of its tokens, the stream is kept as is for the clone lines
+     */
+    void addTokens(TokenStream<Ref> tokens);
+
+    /**
+     * Adapter for the tokens made one by one, e.g. by hand
+     */
+    default void addTokens(final List<Token<Ref>> tokens) {
+        if (tokens.isEmpty()) {
+            return;
+        }
+        addTokens(TokenStream.of(tokens));
+    }
+
+    /**
+     * Removes all the methods of the ref. Removed methods are tombstoned
+     * and are dropped from the index by the next {@link #compact()}.
+     */
+    void remove(Ref ref);
+
+    /**
+     * Makes the methods of the ref belong to the group the ref has now
+     */
+    void regroup(Ref ref);
+
+    /**
+     * Waits until all the changes submitted so far are published
+     */
+    void flush();
+
+    /**
+     * @return whether tombstoned tokens have taken so large share of the index that it is worth compacting
+     */
+    boolean needsCompaction();
+
+    /**
+     * Rebuilds the index of the live methods only. Readers keep using the former generation meanwhile.
+     * The index is rebuilt outside the writer lock, so the changes and {@link #flush()} do not wait for the rebuild:
+     * the changes published in the meantime are replayed onto the rebuilt index right before it replaces the former one.
+     */
+    void compact();
+
+    PublishedCloneClasses<Ref> cloneClassesAfterTransform(Function<Stream<CloneClass<Ref>>, Stream<CloneClass<Ref>>> transform);
+
+    /**
+     * Finds only the clone classes at least {@code minLength} long containing clones from the ref
+     * and clones from the groups other than the ref group.
+     * Only the suffixes of the ref methods are visited, so the cost depends on the ref size
+     * and not on the size of the whole corpus.
+     */
+    PublishedCloneClasses<Ref> cloneClassesAfterTransform(Ref ref,
+                                                          int minLength,
+                                                          Function<Stream<CloneClass<Ref>>, Stream<CloneClass<Ref>>> transform);
+}
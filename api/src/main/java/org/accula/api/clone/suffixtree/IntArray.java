@@ -0,0 +1,137 @@
+package org.accula.api.clone.suffixtree;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable int array that is stored either on the heap or in a direct (off-heap) buffer.
+ * Newly allocated elements are always zero.
+ *
+ * @author Anton Lamtev
+ */
+abstract class IntArray {
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    static IntArray onHeap(final int capacity) {
+        return new Heap(capacity);
+    }
+
+    static IntArray offHeap(final int capacity) {
+        return new OffHeap(capacity);
+    }
+
+    abstract int get(int index);
+
+    abstract void set(int index, int value);
+
+    abstract int capacity();
+
+    abstract void ensureCapacity(int capacity);
+
+    /**
+     * @return array of the same kind, capacity and elements
+     */
+    abstract IntArray copy();
+
+    static int grownCapacity(final int capacity, final int requiredCapacity) {
+        final long grown = Math.max((long) capacity + (capacity >> 1), requiredCapacity);
+        if (requiredCapacity > MAX_CAPACITY) {
+            throw new IllegalStateException("Requested capacity " + requiredCapacity + " is too large");
+        }
+        return (int) Math.min(grown, MAX_CAPACITY);
+    }
+
+    private static final class Heap extends IntArray {
+        private int[] array;
+
+        Heap(final int capacity) {
+            array = new int[capacity];
+        }
+
+        private Heap(final int[] array) {
+            this.array = array;
+        }
+
+        @Override
+        int get(final int index) {
+            return array[index];
+        }
+
+        @Override
+        void set(final int index, final int value) {
+            array[index] = value;
+        }
+
+        @Override
+        int capacity() {
+            return array.length;
+        }
+
+        @Override
+        void ensureCapacity(final int capacity) {
+            if (capacity > array.length) {
+                array = Arrays.copyOf(array, grownCapacity(array.length, capacity));
+            }
+        }
+
+        @Override
+        IntArray copy() {
+            return new Heap(array.clone());
+        }
+    }
+
+    private static final class OffHeap extends IntArray {
+        private IntBuffer buffer;
+
+        OffHeap(final int capacity) {
+            buffer = allocate(capacity);
+        }
+
+        @Override
+        int get(final int index) {
+            return buffer.get(index);
+        }
+
+        @Override
+        void set(final int index, final int value) {
+            buffer.put(index, value);
+        }
+
+        @Override
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        @Override
+        void ensureCapacity(final int capacity) {
+            if (capacity <= buffer.capacity()) {
+                return;
+            }
+            final var grown = allocate(grownCapacity(buffer.capacity(), capacity));
+            final var old = buffer.duplicate();
+            old.clear();
+            grown.put(old);
+            grown.clear();
+            buffer = grown;
+        }
+
+        @Override
+        IntArray copy() {
+            final var copy = new OffHeap(buffer.capacity());
+            final var source = buffer.duplicate();
+            source.clear();
+            copy.buffer.put(source);
+            copy.buffer.clear();
+            return copy;
+        }
+
+        private static IntBuffer allocate(final int capacity) {
+            return ByteBuffer
+                    .allocateDirect(capacity * Integer.BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.accula.api.clone.suffixtree;
+
+import org.accula.api.token.TokenStream;
+
+/**
+ * Per-method side table that keeps token metadata out of the suffix tree.
+ * It is backed by the columnar {@link TokenStream} of the method,
+ * so the type ids indexed by the detectors and the token lines are shared with it rather than copied.
+ *
+ * @author Anton Lamtev
+ */
+public final class MethodTokens<Ref> {
+    private final TokenStream<Ref> tokens;
+
+    private MethodTokens(final TokenStream<Ref> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * @param tokens non-empty token stream of the method
+     */
+    public static <Ref> MethodTokens<Ref> of(final TokenStream<Ref> tokens) {
+        return new MethodTokens<>(tokens);
+    }
+
+    public Ref getRef() {
+        return tokens.getRef();
+    }
+
+    public String getFilename() {
+        return tokens.getFilename();
+    }
+
+    public String getMethodName() {
+        return tokens.getMethodName();
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    public int[] types() {
+        return tokens.typeIds();
+    }
+
+    public int fromLine(final int index) {
+        return tokens.fromLine(index);
+    }
+
+    public int toLine(final int index) {
+        return tokens.toLine(index);
+    }
+}
@@ -0,0 +1,23 @@
+package org.accula.api.clone.suffixtree;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Clone classes found in a published generation of the index.
+ * Changes submitted to the index are published in batches, so the generation may not reflect the latest ones.
+ *
+ * @author Anton Lamtev
+ */
+@Value
+public class PublishedCloneClasses<Ref> {
+    List<CloneClass<Ref>> cloneClasses;
+    long generation;
+    /// Number of the changes submitted but not published yet at the moment the query has finished
+    long pendingChangeCount;
+
+    public boolean isStale() {
+        return pendingChangeCount > 0L;
+    }
+}
@@ -0,0 +1,470 @@
+package org.accula.api.clone.suffixtree;
+
+import java.util.function.IntFunction;
+
+/**
+ * Generalized suffix tree of int sequences built with Ukkonen's algorithm.
+ * <p>
+ * All the sequences are concatenated into one text, each of them is closed with a unique negative terminal symbol,
+ * so real symbols MUST be non-negative. Nodes are plain int ids, and all node data is stored in parallel
+ * {@link IntArray}s (optionally off-heap), so the tree allocates nothing per node, and traversal methods
+ * allocate nothing at all. Children are found by an open-addressing (node, symbol) hash table
+ * and are iterated through {@link #firstChild} and {@link #nextSibling}.
+ * <p>
+ * Each sequence belongs to a group (e.g. a repo), and each internal node is annotated incrementally
+ * with its string depth, the number of its children whose edges start with a non-terminal symbol,
+ * the groups of its terminal edge children, and whether the edge of its root ancestor starts a sequence,
+ * so the clone node checks take O(1).
+ *
+ * @author Anton Lamtev
+ */
+final class SuffixTree {
+    static final int ROOT = 0;
+    static final int NONE = -1;
+    static final int MULTIPLE_GROUPS = -2;
+    private static final int OPEN = Integer.MAX_VALUE;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private final IntFunction<IntArray> allocator;
+    private final IntArray text;
+    private final IntArray edgeStarts;
+    private final IntArray edgeEnds;
+    private final IntArray parents;
+    /// Suffix link of an internal node or suffix start of a leaf
+    private final IntArray links;
+    private final IntArray firstChildren;
+    private final IntArray nextSiblings;
+    private final IntArray sequenceStarts;
+    private final IntArray sequenceGroups;
+    /// Leaf of the suffix starting at the text position
+    private final IntArray leaves;
+    private final IntArray stringDepths;
+    private final IntArray nonTerminalChildCounts;
+    /// Group of all the terminal edge children, NONE if there are no such children or MULTIPLE_GROUPS
+    private final IntArray terminalChildGroups;
+    /// 1 if the edge of the root child on the path to the node starts a sequence, 0 otherwise
+    private final IntArray rootEdgeStartsSequence;
+    /// (node + 1) of a slot, 0 marks the empty one
+    private IntArray childKeyNodes;
+    private IntArray childKeySymbols;
+    private IntArray childValues;
+    private int childMapSize;
+    private int textLength;
+    private int nodeCount;
+    private int sequenceCount;
+
+    static SuffixTree onHeap() {
+        return new SuffixTree(IntArray::onHeap);
+    }
+
+    static SuffixTree offHeap() {
+        return new SuffixTree(IntArray::offHeap);
+    }
+
+    private SuffixTree(final IntFunction<IntArray> allocator) {
+        this.allocator = allocator;
+        text = allocator.apply(INITIAL_CAPACITY);
+        edgeStarts = allocator.apply(INITIAL_CAPACITY);
+        edgeEnds = allocator.apply(INITIAL_CAPACITY);
+        parents = allocator.apply(INITIAL_CAPACITY);
+        links = allocator.apply(INITIAL_CAPACITY);
+        firstChildren = allocator.apply(INITIAL_CAPACITY);
+        nextSiblings = allocator.apply(INITIAL_CAPACITY);
+        sequenceStarts = allocator.apply(INITIAL_CAPACITY);
+        leaves = allocator.apply(INITIAL_CAPACITY);
+        sequenceGroups = allocator.apply(INITIAL_CAPACITY);
+        stringDepths = allocator.apply(INITIAL_CAPACITY);
+        nonTerminalChildCounts = allocator.apply(INITIAL_CAPACITY);
+        terminalChildGroups = allocator.apply(INITIAL_CAPACITY);
+        rootEdgeStartsSequence = allocator.apply(INITIAL_CAPACITY);
+        childKeyNodes = allocator.apply(INITIAL_CAPACITY);
+        childKeySymbols = allocator.apply(INITIAL_CAPACITY);
+        childValues = allocator.apply(INITIAL_CAPACITY);
+        newNode(NONE, 0, 0);
+    }
+
+    /// Copies all the node data, so the copy is changed independently of the tree
+    private SuffixTree(final SuffixTree tree) {
+        allocator = tree.allocator;
+        text = tree.text.copy();
+        edgeStarts = tree.edgeStarts.copy();
+        edgeEnds = tree.edgeEnds.copy();
+        parents = tree.parents.copy();
+        links = tree.links.copy();
+        firstChildren = tree.firstChildren.copy();
+        nextSiblings = tree.nextSiblings.copy();
+        sequenceStarts = tree.sequenceStarts.copy();
+        leaves = tree.leaves.copy();
+        sequenceGroups = tree.sequenceGroups.copy();
+        stringDepths = tree.stringDepths.copy();
+        nonTerminalChildCounts = tree.nonTerminalChildCounts.copy();
+        terminalChildGroups = tree.terminalChildGroups.copy();
+        rootEdgeStartsSequence = tree.rootEdgeStartsSequence.copy();
+        childKeyNodes = tree.childKeyNodes.copy();
+        childKeySymbols = tree.childKeySymbols.copy();
+        childValues = tree.childValues.copy();
+        childMapSize = tree.childMapSize;
+        textLength = tree.textLength;
+        nodeCount = tree.nodeCount;
+        sequenceCount = tree.sequenceCount;
+    }
+
+    /**
+     * @return tree equal to this one, stored the same way (on or off the heap), at the cost of plain array copies
+     */
+    SuffixTree copy() {
+        return new SuffixTree(this);
+    }
+
+    static boolean isTerminal(final int symbol) {
+        return symbol < 0;
+    }
+
+    int addSequence(final int[] symbols) {
+        return addSequence(symbols, 0);
+    }
+
+    /**
+     * Adds the sequence to the tree
+     *
+     * @param group non-negative id of the sequence group
+     * @return id of the sequence added
+     */
+    int addSequence(final int[] symbols, final int group) {
+        final int sequence = sequenceCount++;
+        sequenceStarts.ensureCapacity(sequenceCount);
+        sequenceStarts.set(sequence, textLength);
+        sequenceGroups.ensureCapacity(sequenceCount);
+        sequenceGroups.set(sequence, group);
+        text.ensureCapacity(textLength + symbols.length + 1);
+        leaves.ensureCapacity(textLength + symbols.length + 1);
+        final int firstNewNode = nodeCount;
+
+        int activeNode = ROOT;
+        int activeEdge = 0;
+        int activeLength = 0;
+        int remainder = 0;
+        for (int i = 0; i <= symbols.length; ++i) {
+            final int symbol = i < symbols.length ? symbols[i] : -sequence - 1;
+            final int position = textLength++;
+            text.set(position, symbol);
+            int needsLink = NONE;
+            ++remainder;
+            while (remainder > 0) {
+                if (activeLength == 0) {
+                    activeEdge = position;
+                }
+                final int next = child(activeNode, text.get(activeEdge));
+                if (next == NONE) {
+                    addLeaf(activeNode, position, position - remainder + 1);
+                    needsLink = link(needsLink, activeNode);
+                } else {
+                    final int edgeLength = Math.min(edgeEnds.get(next), position + 1) - edgeStarts.get(next);
+                    if (activeLength >= edgeLength) {
+                        activeEdge += edgeLength;
+                        activeLength -= edgeLength;
+                        activeNode = next;
+                        continue;
+                    }
+                    if (text.get(edgeStarts.get(next) + activeLength) == symbol) {
+                        ++activeLength;
+                        needsLink = link(needsLink, activeNode);
+                        break;
+                    }
+                    final int split = split(activeNode, next, activeLength);
+                    addLeaf(split, position, position - remainder + 1);
+                    needsLink = link(needsLink, split);
+                }
+                --remainder;
+                if (activeNode == ROOT && activeLength > 0) {
+                    --activeLength;
+                    activeEdge = position - remainder + 1;
+                } else {
+                    activeNode = links.get(activeNode);
+                }
+            }
+        }
+
+        // The terminal is unique, so every suffix of the sequence ends in a leaf at this point
+        for (int node = firstNewNode; node < nodeCount; ++node) {
+            if (edgeEnds.get(node) == OPEN) {
+                edgeEnds.set(node, textLength);
+            }
+        }
+
+        return sequence;
+    }
+
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    int textLength() {
+        return textLength;
+    }
+
+    int sequenceCount() {
+        return sequenceCount;
+    }
+
+    int sequenceStart(final int sequence) {
+        return sequenceStarts.get(sequence);
+    }
+
+    /**
+     * @return sequence length without the terminal
+     */
+    int sequenceLength(final int sequence) {
+        final int end = sequence + 1 < sequenceCount ? sequenceStarts.get(sequence + 1) : textLength;
+        return end - sequenceStarts.get(sequence) - 1;
+    }
+
+    int sequenceOf(final int position) {
+        int low = 0;
+        int high = sequenceCount - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (sequenceStarts.get(mid) <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    boolean isSequenceStart(final int position) {
+        return sequenceStarts.get(sequenceOf(position)) == position;
+    }
+
+    int sequenceGroup(final int sequence) {
+        return sequenceGroups.get(sequence);
+    }
+
+    int symbol(final int position) {
+        return text.get(position);
+    }
+
+    boolean isLeaf(final int node) {
+        return node != ROOT && firstChildren.get(node) == NONE;
+    }
+
+    int parent(final int node) {
+        return parents.get(node);
+    }
+
+    int firstChild(final int node) {
+        return firstChildren.get(node);
+    }
+
+    int nextSibling(final int node) {
+        return nextSiblings.get(node);
+    }
+
+    /**
+     * @return text position of the first symbol of the edge incoming to the node
+     */
+    int edgeStart(final int node) {
+        return edgeStarts.get(node);
+    }
+
+    /**
+     * @return text position next to the last symbol of the edge incoming to the node
+     */
+    int edgeEnd(final int node) {
+        return edgeEnds.get(node);
+    }
+
+    int edgeLength(final int node) {
+        return edgeEnds.get(node) - edgeStarts.get(node);
+    }
+
+    /**
+     * @return string depth of the internal node
+     */
+    int stringDepth(final int node) {
+        return stringDepths.get(node);
+    }
+
+    int nonTerminalChildCount(final int node) {
+        return nonTerminalChildCounts.get(node);
+    }
+
+    /**
+     * @return group of all the terminal edge children of the node,
+     * {@link #NONE} if there are no such children or {@link #MULTIPLE_GROUPS} if they belong to different groups
+     */
+    int terminalChildGroup(final int node) {
+        return terminalChildGroups.get(node);
+    }
+
+    boolean rootEdgeStartsSequence(final int node) {
+        return rootEdgeStartsSequence.get(node) != 0;
+    }
+
+    int suffixStart(final int leaf) {
+        return links.get(leaf);
+    }
+
+    /**
+     * @return leaf of the suffix starting at the text position
+     */
+    int leaf(final int suffixStart) {
+        return leaves.get(suffixStart);
+    }
+
+    int child(final int node, final int symbol) {
+        final int mask = childKeyNodes.capacity() - 1;
+        int slot = hash(node, symbol) & mask;
+        while (true) {
+            final int key = childKeyNodes.get(slot);
+            if (key == 0) {
+                return NONE;
+            }
+            if (key == node + 1 && childKeySymbols.get(slot) == symbol) {
+                return childValues.get(slot);
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int newNode(final int parent, final int edgeStart, final int edgeEnd) {
+        final int node = nodeCount++;
+        edgeStarts.ensureCapacity(nodeCount);
+        edgeEnds.ensureCapacity(nodeCount);
+        parents.ensureCapacity(nodeCount);
+        links.ensureCapacity(nodeCount);
+        firstChildren.ensureCapacity(nodeCount);
+        nextSiblings.ensureCapacity(nodeCount);
+        stringDepths.ensureCapacity(nodeCount);
+        nonTerminalChildCounts.ensureCapacity(nodeCount);
+        terminalChildGroups.ensureCapacity(nodeCount);
+        rootEdgeStartsSequence.ensureCapacity(nodeCount);
+        edgeStarts.set(node, edgeStart);
+        edgeEnds.set(node, edgeEnd);
+        parents.set(node, parent);
+        links.set(node, ROOT);
+        firstChildren.set(node, NONE);
+        nextSiblings.set(node, NONE);
+        stringDepths.set(node, 0);
+        nonTerminalChildCounts.set(node, 0);
+        terminalChildGroups.set(node, NONE);
+        if (parent == ROOT) {
+            rootEdgeStartsSequence.set(node, isSequenceStart(edgeStart) ? 1 : 0);
+        } else if (parent != NONE) {
+            rootEdgeStartsSequence.set(node, rootEdgeStartsSequence.get(parent));
+        }
+        return node;
+    }
+
+    private void addLeaf(final int parent, final int position, final int suffixStart) {
+        final int leaf = newNode(parent, position, OPEN);
+        links.set(leaf, suffixStart);
+        leaves.set(suffixStart, leaf);
+        attach(parent, leaf);
+    }
+
+    private int split(final int parent, final int child, final int length) {
+        final int start = edgeStarts.get(child);
+        final int split = newNode(parent, start, start + length);
+        stringDepths.set(split, stringDepths.get(parent) + length);
+        replace(parent, child, split);
+        edgeStarts.set(child, start + length);
+        parents.set(child, split);
+        attach(split, child);
+        return split;
+    }
+
+    private int link(final int needsLink, final int node) {
+        if (needsLink != NONE && needsLink != ROOT) {
+            links.set(needsLink, node);
+        }
+        return node;
+    }
+
+    private void attach(final int parent, final int child) {
+        final int symbol = text.get(edgeStarts.get(child));
+        putChild(parent, symbol, child);
+        nextSiblings.set(child, firstChildren.get(parent));
+        firstChildren.set(parent, child);
+        if (isTerminal(symbol)) {
+            final int group = sequenceGroups.get(-symbol - 1);
+            final int groups = terminalChildGroups.get(parent);
+            terminalChildGroups.set(parent, groups == NONE || groups == group ? group : MULTIPLE_GROUPS);
+        } else {
+            nonTerminalChildCounts.set(parent, nonTerminalChildCounts.get(parent) + 1);
+        }
+    }
+
+    /// Both the child and its replacement start with the same non-terminal symbol, so the parent annotations stay the same
+    private void replace(final int parent, final int child, final int replacement) {
+        putChild(parent, text.get(edgeStarts.get(child)), replacement);
+        nextSiblings.set(replacement, nextSiblings.get(child));
+        int sibling = firstChildren.get(parent);
+        if (sibling == child) {
+            firstChildren.set(parent, replacement);
+            return;
+        }
+        while (nextSiblings.get(sibling) != child) {
+            sibling = nextSiblings.get(sibling);
+        }
+        nextSiblings.set(sibling, replacement);
+    }
+
+    private void putChild(final int node, final int symbol, final int child) {
+        if ((childMapSize + 1) * 2 > childKeyNodes.capacity()) {
+            rehash();
+        }
+        if (insert(childKeyNodes, childKeySymbols, childValues, node, symbol, child)) {
+            ++childMapSize;
+        }
+    }
+
+    private void rehash() {
+        final int capacity = childKeyNodes.capacity() * 2;
+        final var keyNodes = allocator.apply(capacity);
+        final var keySymbols = allocator.apply(capacity);
+        final var values = allocator.apply(capacity);
+        for (int slot = 0; slot < childKeyNodes.capacity(); ++slot) {
+            final int key = childKeyNodes.get(slot);
+            if (key != 0) {
+                insert(keyNodes, keySymbols, values, key - 1, childKeySymbols.get(slot), childValues.get(slot));
+            }
+        }
+        childKeyNodes = keyNodes;
+        childKeySymbols = keySymbols;
+        childValues = values;
+    }
+
+    /**
+     * @return true if the new key has been inserted, false if the value of the existing one has been replaced
+     */
+    private static boolean insert(final IntArray keyNodes,
+                                  final IntArray keySymbols,
+                                  final IntArray values,
+                                  final int node,
+                                  final int symbol,
+                                  final int child) {
+        final int mask = keyNodes.capacity() - 1;
+        int slot = hash(node, symbol) & mask;
+        while (true) {
+            final int key = keyNodes.get(slot);
+            if (key == 0) {
+                keyNodes.set(slot, node + 1);
+                keySymbols.set(slot, symbol);
+                values.set(slot, child);
+                return true;
+            }
+            if (key == node + 1 && keySymbols.get(slot) == symbol) {
+                values.set(slot, child);
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int hash(final int node, final int symbol) {
+        final int hash = node * 0x9E3779B9 ^ symbol * 0x85EBCA6B;
+        return hash ^ (hash >>> 15);
+    }
+}
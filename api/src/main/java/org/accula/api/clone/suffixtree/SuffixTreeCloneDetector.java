@@ -1,38 +1,350 @@
 package org.accula.api.clone.suffixtree;
 
-import com.suhininalex.suffixtree.SuffixTree;
-import org.accula.api.token.TraverseUtils;
-import org.accula.api.util.Sync;
+import org.accula.api.token.TokenStream;
+import org.accula.api.util.LeftRight;
+import org.springframework.lang.Nullable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
+import static org.accula.api.clone.suffixtree.SuffixTree.NONE;
+import static org.accula.api.clone.suffixtree.SuffixTree.ROOT;
 
 /**
+ * Token types are indexed by their process-wide ids (see {@link TokenStream#typeIds()}), so the suffix tree indexes
+ * plain int sequences, and the token metadata is kept in per-method {@link MethodTokens} indexed by the sequence id.
+ * <p>
+ * Removed methods are tombstoned: their clones are skipped, but their suffixes stay in the tree
+ * (and may still prevent some nodes from being clone nodes) until the tree is rebuilt by {@link #compact()}.
+ * Compaction rebuilds the tree of one copy without holding the writer lock (see {@link LeftRight#rebuild}),
+ * so neither queries nor {@link #flush()} wait for it, and the tree of the other copy is copied from it.
+ * <p>
+ * The index is kept in two copies (see {@link LeftRight}): queries read the published one without locking,
+ * while the batched changes are applied to the other one. The method tokens are immutable and shared by the copies,
+ * so only the trees and the small per-method tables are kept twice. Compaction briefly keeps one more tree.
+ *
  * @author Anton Lamtev
  */
-public final class SuffixTreeCloneDetector<Token extends Comparable<Token>, Ref> {
-    private final SuffixTree<Token> suffixTree = new SuffixTree<>();
-    private final Sync sync = new Sync();
+public final class SuffixTreeCloneDetector<Ref> implements CloneClassDetector<Ref> {
+    private static final double COMPACTION_THRESHOLD = 0.5;
 
-    public long addTokens(final List<Token> tokens) {
-        return sync.writing(() -> suffixTree.addSequence(tokens)).get();
+    private final Function<Ref, ?> groupOf;
+    private final Supplier<SuffixTree> suffixTreeFactory;
+    private final LeftRight<Index<Ref>> index;
+
+    public SuffixTreeCloneDetector() {
+        this(false);
+    }
+
+    /**
+     * @param offHeap whether to store the suffix tree in direct buffers instead of the heap
+     */
+    public SuffixTreeCloneDetector(final boolean offHeap) {
+        this(Function.identity(), offHeap);
+    }
+
+    /**
+     * @param groupOf group of the ref (e.g. a repo of a snapshot), clones from the same group are not reported
+     *                by the ref-scoped lookup
+     * @param offHeap whether to store the suffix tree in direct buffers instead of the heap
+     */
+    public SuffixTreeCloneDetector(final Function<Ref, ?> groupOf, final boolean offHeap) {
+        this.groupOf = groupOf;
+        this.suffixTreeFactory = offHeap ? SuffixTree::offHeap : SuffixTree::onHeap;
+        this.index = new LeftRight<>(() -> new Index<>(groupOf, suffixTreeFactory));
+    }
+
+    @Override
+    public void addTokens(final TokenStream<Ref> tokens) {
+        if (tokens.isEmpty()) {
+            return;
+        }
+        final var method = MethodTokens.of(tokens);
+        final var group = groupOf.apply(method.getRef());
+        index.submit(copy -> copy.add(method, group));
+    }
+
+    @Override
+    public void remove(final Ref ref) {
+        index.submit(copy -> copy.remove(ref));
+    }
+
+    /// Tree nodes are annotated with the groups of the sequences, so the methods are added again as the sequences of the new group
+    @Override
+    public void regroup(final Ref ref) {
+        final var group = groupOf.apply(ref);
+        index.submit(copy -> copy.regroup(ref, group));
+    }
+
+    @Override
+    public void flush() {
+        index.flush();
+    }
+
+    @Override
+    public boolean needsCompaction() {
+        return index.read(Index::needsCompaction);
+    }
+
+    @Override
+    public void compact() {
+        if (index.read(copy -> copy.deadTokenCount == 0L)) {
+            return;
+        }
+        index.rebuild(Index::liveMethods, live -> Index.of(live, groupOf, suffixTreeFactory), Index::copy);
+    }
+
+    @Override
+    public PublishedCloneClasses<Ref> cloneClassesAfterTransform(
+            final Function<Stream<CloneClass<Ref>>, Stream<CloneClass<Ref>>> transform) {
+        return index.readGeneration((copy, generation) -> published(transform.apply(copy.cloneClasses()), generation));
+    }
+
+    @Override
+    public PublishedCloneClasses<Ref> cloneClassesAfterTransform(
+            final Ref ref,
+            final int minLength,
+            final Function<Stream<CloneClass<Ref>>, Stream<CloneClass<Ref>>> transform) {
+        return index.readGeneration((copy, generation) ->
+                published(transform.apply(copy.cloneClasses(ref, minLength)), generation));
+    }
+
+    /// Clone classes are collected while the generation is being read since the stream is lazy
+    private PublishedCloneClasses<Ref> published(final Stream<CloneClass<Ref>> cloneClasses, final long generation) {
+        return new PublishedCloneClasses<>(cloneClasses.collect(toList()), generation, index.pendingChangeCount());
     }
 
-    public List<CloneClass<Ref>> cloneClassesAfterTransform(final Function<Stream<CloneClass<Ref>>, Stream<CloneClass<Ref>>> transform) {
-        return sync.reading(() ->
-                transform.apply(cloneClasses())
-                        .collect(toList()))
-                .get();
+    private static final class LiveMethods<Ref> {
+        final List<MethodTokens<Ref>> methods;
+        final int[] groups;
+        final GroupIds groupIds;
+
+        LiveMethods(final List<MethodTokens<Ref>> methods, final int[] groups, final GroupIds groupIds) {
+            this.methods = methods;
+            this.groups = groups;
+            this.groupIds = groupIds;
+        }
+    }
+
+    /**
+     * Group ids of the live methods. An id is released once all the methods of its group are removed,
+     * and it is never reused, so the tombstoned sequences still annotating the tree nodes with it do not matter.
+     */
+    private static final class GroupIds {
+        final Map<Object, Integer> ids;
+        final Map<Integer, Object> groups;
+        final Map<Integer, Integer> liveMethodCounts;
+        int nextId;
+
+        GroupIds() {
+            this(new HashMap<>(), new HashMap<>(), new HashMap<>(), 0);
+        }
+
+        private GroupIds(final Map<Object, Integer> ids,
+                         final Map<Integer, Object> groups,
+                         final Map<Integer, Integer> liveMethodCounts,
+                         final int nextId) {
+            this.ids = ids;
+            this.groups = groups;
+            this.liveMethodCounts = liveMethodCounts;
+            this.nextId = nextId;
+        }
+
+        /// Null groups (e.g. refs whose group is unknown already) get an id too, so they are never mixed with the known ones
+        int acquire(@Nullable final Object group) {
+            final int id = ids.computeIfAbsent(group, g -> {
+                groups.put(nextId, g);
+                return nextId++;
+            });
+            liveMethodCounts.merge(id, 1, Integer::sum);
+            return id;
+        }
+
+        void release(final int id) {
+            if (liveMethodCounts.merge(id, -1, Integer::sum) == 0) {
+                liveMethodCounts.remove(id);
+                ids.remove(groups.remove(id));
+            }
+        }
+
+        int idOf(@Nullable final Object group) {
+            return ids.getOrDefault(group, NONE);
+        }
+
+        GroupIds copy() {
+            return new GroupIds(new HashMap<>(ids), new HashMap<>(groups), new HashMap<>(liveMethodCounts), nextId);
+        }
     }
 
-    private Stream<CloneClass<Ref>> cloneClasses() {
-        return TraverseUtils
-                .dfs(suffixTree.getRoot(), SuffixTreeUtils::terminalNodes)
-                .filter(SuffixTreeUtils::isCloneNode)
-                .map(CloneClass<Ref>::new)
-                .filter(cloneClass -> !cloneClass.getClones().isEmpty());
+    /**
+     * One copy of the index. Changes are applied to both copies in the same order,
+     * so the sequence and group ids are the same in both of them.
+     */
+    private static final class Index<Ref> {
+        final Function<Ref, ?> groupOf;
+        final Supplier<SuffixTree> suffixTreeFactory;
+        SuffixTree suffixTree;
+        GroupIds groupIds = new GroupIds();
+        List<MethodTokens<Ref>> methods = new ArrayList<>();
+        Map<Ref, List<Integer>> sequencesByRef = new HashMap<>();
+        BitSet tombstones = new BitSet();
+        long tokenCount;
+        long deadTokenCount;
+
+        Index(final Function<Ref, ?> groupOf, final Supplier<SuffixTree> suffixTreeFactory) {
+            this(groupOf, suffixTreeFactory, suffixTreeFactory.get());
+        }
+
+        private Index(final Function<Ref, ?> groupOf, final Supplier<SuffixTree> suffixTreeFactory, final SuffixTree suffixTree) {
+            this.groupOf = groupOf;
+            this.suffixTreeFactory = suffixTreeFactory;
+            this.suffixTree = suffixTree;
+        }
+
+        /// Group is taken by the writer once, since the group of a ref may be gone by the time the copies are changed
+        void add(final MethodTokens<Ref> method, @Nullable final Object group) {
+            addSequence(method, groupIds.acquire(group));
+        }
+
+        void remove(final Ref ref) {
+            final var sequences = sequencesByRef.remove(ref);
+            if (sequences == null) {
+                return;
+            }
+            for (final int sequence : sequences) {
+                tombstones.set(sequence);
+                groupIds.release(suffixTree.sequenceGroup(sequence));
+                deadTokenCount += methods.get(sequence).size();
+            }
+        }
+
+        void regroup(final Ref ref, @Nullable final Object group) {
+            final var sequences = sequencesByRef.get(ref);
+            if (sequences == null) {
+                return;
+            }
+            final var regrouped = sequences.stream().map(methods::get).collect(toList());
+            remove(ref);
+            regrouped.forEach(method -> add(method, group));
+        }
+
+        boolean needsCompaction() {
+            return deadTokenCount > tokenCount * COMPACTION_THRESHOLD;
+        }
+
+        /// Index with the suffix tree of the live methods only, group ids stay the same
+        static <Ref> Index<Ref> of(final LiveMethods<Ref> live,
+                                   final Function<Ref, ?> groupOf,
+                                   final Supplier<SuffixTree> suffixTreeFactory) {
+            final var index = new Index<>(groupOf, suffixTreeFactory);
+            index.groupIds = live.groupIds.copy();
+            for (int i = 0; i < live.methods.size(); ++i) {
+                index.addSequence(live.methods.get(i), live.groups[i]);
+            }
+            return index;
+        }
+
+        /// Copy sharing the immutable methods with this one
+        Index<Ref> copy() {
+            final var copy = new Index<>(groupOf, suffixTreeFactory, suffixTree.copy());
+            copy.groupIds = groupIds.copy();
+            copy.methods = new ArrayList<>(methods);
+            sequencesByRef.forEach((ref, sequences) -> copy.sequencesByRef.put(ref, new ArrayList<>(sequences)));
+            copy.tombstones = (BitSet) tombstones.clone();
+            copy.tokenCount = tokenCount;
+            copy.deadTokenCount = deadTokenCount;
+            return copy;
+        }
+
+        /// Methods are immutable, so they are shared with the rebuilt copies
+        LiveMethods<Ref> liveMethods() {
+            final var liveSequences = IntStream
+                    .range(0, methods.size())
+                    .filter(sequence -> !tombstones.get(sequence))
+                    .toArray();
+            return new LiveMethods<>(
+                    Arrays.stream(liveSequences).mapToObj(methods::get).collect(toList()),
+                    Arrays.stream(liveSequences).map(suffixTree::sequenceGroup).toArray(),
+                    groupIds.copy()
+            );
+        }
+
+        void addSequence(final MethodTokens<Ref> method, final int group) {
+            final var sequence = suffixTree.addSequence(method.types(), group);
+            sequencesByRef.computeIfAbsent(method.getRef(), ref -> new ArrayList<>()).add(sequence);
+            tokenCount += method.size();
+            methods.add(method);
+        }
+
+        Stream<CloneClass<Ref>> cloneClasses() {
+            return IntStream
+                    .range(ROOT + 1, suffixTree.nodeCount())
+                    .filter(node -> SuffixTreeUtils.isCloneNode(suffixTree, node))
+                    .mapToObj(node -> cloneClass(node, NONE))
+                    .filter(Objects::nonNull);
+        }
+
+        Stream<CloneClass<Ref>> cloneClasses(final Ref ref, final int minLength) {
+            final int group = groupIds.idOf(groupOf.apply(ref));
+            return sequencesByRef
+                    .getOrDefault(ref, List.of())
+                    .stream()
+                    .flatMapToInt(sequence -> cloneNodes(sequence, minLength))
+                    .distinct()
+                    .mapToObj(node -> cloneClass(node, group))
+                    .filter(Objects::nonNull);
+        }
+
+        /**
+         * Each clone of the sequence is the suffix leading to a terminal edge leaf of a clone node,
+         * the node string depth equals the suffix length, so the suffixes shorter than {@code minLength} are skipped at all
+         */
+        IntStream cloneNodes(final int sequence, final int minLength) {
+            final int start = suffixTree.sequenceStart(sequence);
+            final int group = suffixTree.sequenceGroup(sequence);
+            return IntStream
+                    .rangeClosed(start, start + suffixTree.sequenceLength(sequence) - Math.max(minLength, 1))
+                    .map(suffixTree::leaf)
+                    .filter(leaf -> SuffixTreeUtils.isTerminalEdge(suffixTree, leaf))
+                    .map(suffixTree::parent)
+                    .filter(node -> SuffixTreeUtils.isCloneNode(suffixTree, node)
+                                    && SuffixTreeUtils.hasClonesFromGroupsOtherThan(suffixTree, node, group));
+        }
+
+        /**
+         * Node annotations do not take tombstones into account, so the live clones are rechecked here
+         *
+         * @return clone class of the node live clones if there are at least two of them and some of them
+         * belong to a group other than the given one, null otherwise
+         */
+        @Nullable
+        CloneClass<Ref> cloneClass(final int node, final int group) {
+            final var sequences = IntStream.builder();
+            int liveCloneCount = 0;
+            boolean hasClonesFromOtherGroups = false;
+            for (int child = suffixTree.firstChild(node); child != NONE; child = suffixTree.nextSibling(child)) {
+                final int sequence = suffixTree.sequenceOf(suffixTree.edgeStart(child));
+                if (tombstones.get(sequence)) {
+                    continue;
+                }
+                sequences.add(sequence);
+                ++liveCloneCount;
+                hasClonesFromOtherGroups |= suffixTree.sequenceGroup(sequence) != group;
+            }
+            if (liveCloneCount < 2 || !hasClonesFromOtherGroups) {
+                return null;
+            }
+            return CloneClass.of(suffixTree.stringDepth(node), sequences.build(), methods);
+        }
     }
 }
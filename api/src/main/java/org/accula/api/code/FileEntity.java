@@ -1,5 +1,6 @@
 package org.accula.api.code;
 
+import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
 import lombok.Value;
 import org.jetbrains.annotations.Nullable;
@@ -9,6 +10,7 @@ import org.jetbrains.annotations.Nullable;
  * @author Anton Lamtev
  */
 @Value
+@AllArgsConstructor
 public class FileEntity<Ref> {
     Ref ref;
     @Nullable
@@ -16,6 +18,14 @@ public class FileEntity<Ref> {
     @EqualsAndHashCode.Exclude
     @Nullable
     String content;
+    /// Git blob id of the content, so files with the same content can be processed once
+    @EqualsAndHashCode.Exclude
+    @Nullable
+    String id;
+
+    public FileEntity(final Ref ref, @Nullable final String name, @Nullable final String content) {
+        this(ref, name, content, null);
+    }
 
     public static <Ref> FileEntity<Ref> absent(final Ref ref) {
         return new FileEntity<>(ref, null, null);
@@ -14,6 +14,7 @@ import org.accula.api.code.git.Snippet;
 import org.accula.api.db.model.GithubRepo;
 import org.accula.api.db.model.Snapshot;
 import org.accula.api.util.Lambda;
+import org.jetbrains.annotations.Nullable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -22,6 +23,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
@@ -41,28 +43,24 @@ public final class GitCodeLoader implements CodeLoader {
     @Override
     public Flux<FileEntity<Snapshot>> loadFiles(final Snapshot snapshot, final FileFilter filter) {
         return withCommonGitRepo(snapshot)
-                .flatMap(repo -> Mono
-                        .fromFuture(repo.lsTree(snapshot.getSha()))
+                .flatMap(repo -> fromFuture(repo.lsTree(snapshot.getSha()))
                         .map(files -> files
                                 .stream()
                                 .filter(file -> filter.test(file.getName()))
                                 .collect(toList()))
-                        .flatMap(files -> Mono
-                                .fromFuture(repo.catFiles(files))
+                        .flatMap(files -> fromFuture(repo.catFiles(files))
                                 .map(filesContent -> files
                                         .stream()
-                                        .map(file -> new FileEntity<>(snapshot, file.getName(), filesContent.get(file))))))
+                                        .map(file -> new FileEntity<>(snapshot, file.getName(), filesContent.get(file), file.getId())))))
                 .flatMapMany(Flux::fromStream);
     }
 
     @Override
     public Flux<FileEntity<Snapshot>> loadSnippets(final Snapshot snapshot, final List<SnippetMarker> markers) {
         return withCommonGitRepo(snapshot)
-                .flatMap(repo -> Mono
-                        .fromFuture(repo.lsTree(snapshot.getSha()))
+                .flatMap(repo -> fromFuture(repo.lsTree(snapshot.getSha()))
                         .map(files -> convertSnippets(files, markers))
-                        .flatMap(snippets -> Mono
-                                .fromFuture(repo.catFiles(snippets))
+                        .flatMap(snippets -> fromFuture(repo.catFiles(snippets))
                                 .map(filesContent -> snippets
                                         .stream()
                                         .map(snippet -> new FileEntity<>(
@@ -83,29 +81,34 @@ public final class GitCodeLoader implements CodeLoader {
                                                     final Snapshot head,
                                                     final FileFilter filter) {
         return withProjectGitRepo(projectRepo)
-                .flatMap(repo -> addOrUpdateRemotes(repo, base, head))
+                .flatMap(repo -> fromFuture(repo.containsCommits(List.of(base.getSha(), head.getSha())))
+                        .flatMap(present -> present ? Mono.just(repo) : addOrUpdateRemotes(repo, base, head)))
                 .flatMapMany(repo -> loadDiff(repo, base, head, filter, 1));
     }
 
-    /// We name each common repo git folder like that: <owner-login>_<repo-name>
+    /// We name each common repo git folder like that: <owner-login>_<repo-name>.
+    /// Forks of a project share the objects of the project git folder, that has them all as remotes
     private Mono<Repo> withCommonGitRepo(final Snapshot snapshot) {
         final var snapshotRepo = snapshot.getRepo();
         final var repoGitDirectory = Path.of(snapshotRepo.getOwner().getLogin() + "_" + snapshotRepo.getName());
         final var repoUrl = repoGitUrl(snapshotRepo);
-        return withGitRepo(repoGitDirectory, repoUrl);
+        return withGitRepo(repoGitDirectory, repoUrl, projectGitDirectory(snapshotRepo));
     }
 
     private Mono<Repo> withProjectGitRepo(final GithubRepo projectRepo) {
-        final var projectGitDirectory = Path.of(projectRepo.getName());
         final var projectRepoUrl = repoGitUrl(projectRepo);
-        return withGitRepo(projectGitDirectory, projectRepoUrl);
+        return withGitRepo(projectGitDirectory(projectRepo), projectRepoUrl, null);
     }
 
-    private Mono<Repo> withGitRepo(final Path directory, final String url) {
-        return Mono
-                .fromFuture(git.repo(directory))
-                .switchIfEmpty(Mono.fromFuture(git.clone(url, directory.toString())))
-                .flatMap(repo -> Mono.fromFuture(repo.fetch()));
+    /// Repos are not fetched here, since reads fetch the missing commits on their own
+    private Mono<Repo> withGitRepo(final Path directory, final String url, @Nullable final Path objectsReference) {
+        return fromFuture(git.repo(directory))
+                .switchIfEmpty(Mono.defer(() -> fromFuture(git.clone(url, directory.toString(), objectsReference))));
+    }
+
+    /// We name each project git folder after the repo name, so the forks of the project have the same project git folder
+    private static Path projectGitDirectory(final GithubRepo repo) {
+        return Path.of(repo.getName());
     }
 
     private Mono<Repo> addOrUpdateRemotes(final Repo repo, final Snapshot base, final Snapshot head) {
@@ -113,8 +116,7 @@ public final class GitCodeLoader implements CodeLoader {
         final var headRemote = head.getRepo().getOwner().getLogin();
         final var baseUrl = repoGitUrl(base.getRepo());
         final var headUrl = repoGitUrl(head.getRepo());
-        return Mono
-                .fromFuture(repo.remote())
+        return fromFuture(repo.remote())
                 .flatMap(remotesPresent -> Mono
                         .zip(
                                 addOrUpdateRemote(repo, baseUrl, baseRemote, remotesPresent),
@@ -127,7 +129,7 @@ public final class GitCodeLoader implements CodeLoader {
                                                 final String remoteUrl,
                                                 final String remote,
                                                 final Set<String> remotesPresent) {
-        return Mono.fromFuture(remotesPresent.contains(remote) ? repo.remoteUpdate(remote) : repo.remoteAdd(remoteUrl, remote));
+        return fromFuture(remotesPresent.contains(remote) ? repo.remoteUpdate(remote) : repo.remoteAdd(remoteUrl, remote));
     }
 
     private static Flux<DiffEntry<Snapshot>> loadDiff(final Repo repo,
@@ -135,14 +137,12 @@ public final class GitCodeLoader implements CodeLoader {
                                                       final Snapshot head,
                                                       final FileFilter filter,
                                                       final int findRenamesMinSimilarityIndex) {
-        return Mono
-                .fromFuture(repo.diff(base.getSha(), head.getSha(), findRenamesMinSimilarityIndex))
+        return fromFuture(repo.diff(base.getSha(), head.getSha(), findRenamesMinSimilarityIndex))
                 .map(diffEntries -> diffEntries
                         .stream()
                         .filter(entry -> entry.passes(filter))
                         .collect(toList()))
-                .flatMapMany(diffEntries -> Mono
-                        .fromFuture(repo
+                .flatMapMany(diffEntries -> fromFuture(repo
                                 .catFiles(diffEntries
                                         .stream()
                                         .flatMap(GitDiffEntry::objectIds)
@@ -161,28 +161,28 @@ public final class GitCodeLoader implements CodeLoader {
                                 final var addition = (Addition) diffEntry;
                                 return DiffEntry.of(
                                         FileEntity.absent(base),
-                                        new FileEntity<>(head, addition.getHead().getName(), files.get(addition.getHead()))
+                                        fileEntity(head, addition.getHead(), files)
                                 );
                             }
                             if (diffEntry instanceof Deletion) {
                                 final var deletion = (Deletion) diffEntry;
                                 return DiffEntry.of(
-                                        new FileEntity<>(base, deletion.getBase().getName(), files.get(deletion.getBase())),
+                                        fileEntity(base, deletion.getBase(), files),
                                         FileEntity.absent(head)
                                 );
                             }
                             if (diffEntry instanceof Modification) {
                                 final var modification = (Modification) diffEntry;
                                 return DiffEntry.of(
-                                        new FileEntity<>(base, modification.getBase().getName(), files.get(modification.getBase())),
-                                        new FileEntity<>(head, modification.getHead().getName(), files.get(modification.getHead()))
+                                        fileEntity(base, modification.getBase(), files),
+                                        fileEntity(head, modification.getHead(), files)
                                 );
                             }
                             if (diffEntry instanceof Renaming) {
                                 final var renaming = (Renaming) diffEntry;
                                 return new DiffEntry<>(
-                                        new FileEntity<>(base, renaming.getBase().getName(), files.get(renaming.getBase())),
-                                        new FileEntity<>(head, renaming.getHead().getName(), files.get(renaming.getHead())),
+                                        fileEntity(base, renaming.getBase(), files),
+                                        fileEntity(head, renaming.getHead(), files),
                                         renaming.getSimilarityIndex()
                                 );
                             }
@@ -191,6 +191,10 @@ public final class GitCodeLoader implements CodeLoader {
                         }));
     }
 
+    private static FileEntity<Snapshot> fileEntity(final Snapshot ref, final GitFile file, final Map<Identifiable, String> files) {
+        return new FileEntity<>(ref, file.getName(), files.get(file), file.getId());
+    }
+
     private static List<Snippet> convertSnippets(final List<GitFile> files, final List<SnippetMarker> markers) {
         final var nameToFileMap = files
                 .stream()
@@ -208,6 +212,13 @@ public final class GitCodeLoader implements CodeLoader {
                 .collect(toList());
     }
 
+    /// Reactor does not cancel the future when the mono is cancelled, but git operations destroy their processes on cancellation
+    private static <T> Mono<T> fromFuture(final CompletableFuture<T> future) {
+        return Mono
+                .fromFuture(future)
+                .doOnCancel(() -> future.cancel(true));
+    }
+
     private static String repoGitUrl(final GithubRepo repo) {
         return GITHUB_BASE_URL + repo.getOwner().getLogin() + "/" + repo.getName() + GIT_EXTENSION;
     }
@@ -0,0 +1,56 @@
+package org.accula.api.code.git;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of blob contents shared by all the repos.
+ * Blobs are immutable and their ids are content hashes, so a blob cached once
+ * is valid for every repo that contains it.
+ *
+ * @author Anton Lamtev
+ */
+public final class BlobCache {
+    private final Cache<String, byte[]> blobs;
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param maxBytes total content size the least recently used blobs are evicted above
+     */
+    public BlobCache(final long maxBytes) {
+        this.blobs = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String id, byte[] blob) -> blob.length)
+                .<String, byte[]>removalListener(removal -> bytes.addAndGet(-removal.getValue().length))
+                .recordStats()
+                .build();
+    }
+
+    public CacheStats stats() {
+        return blobs.stats();
+    }
+
+    public long size() {
+        return blobs.size();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    Map<String, byte[]> getAllPresent(final Collection<String> ids) {
+        return blobs.getAllPresent(ids);
+    }
+
+    void putAll(final Map<String, byte[]> contents) {
+        contents.forEach((id, content) -> {
+            bytes.addAndGet(content.length);
+            blobs.put(id, content);
+        });
+    }
+}
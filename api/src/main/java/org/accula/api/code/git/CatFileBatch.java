@@ -0,0 +1,270 @@
+package org.accula.api.code.git;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * A long-lived {@code git cat-file --batch} process of a repo.
+ * Object ids requested by concurrent callers are pipelined into the process stdin,
+ * and the responses are read back in the same order by a dedicated thread,
+ * so reading objects does not fork a git process per call.
+ * The process is stopped after it has been idle for {@link #IDLE_TIMEOUT}
+ * and is started again by the next read, also if it has crashed.
+ *
+ * @author Anton Lamtev
+ */
+final class CatFileBatch {
+    private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(1L);
+    private static final ScheduledExecutorService IDLE_CHECKER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final var thread = new Thread(runnable, "git-cat-file-idle-checker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final byte NEWLINE = '\n';
+    private static final String MISSING = " missing";
+    private static final String AMBIGUOUS = " ambiguous";
+
+    private final Path directory;
+    @Nullable
+    private Session session;
+
+    CatFileBatch(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param timeout after which the process is considered hanging and is destroyed forcibly,
+     *                failing all the pending reads. The next read starts it again
+     * @return contents of the objects by their ids. Missing objects are absent in the result
+     */
+    Map<String, byte[]> read(final Collection<String> objectIds, final Duration timeout) {
+        try {
+            return read(objectIds).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            kill();
+            throw new GitException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof GitException ? (GitException) e.getCause() : new GitException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new GitException(e);
+        }
+    }
+
+    private CompletableFuture<Map<String, byte[]>> read(final Collection<String> objectIds) {
+        final var contents = new ConcurrentHashMap<String, byte[]>(objectIds.size());
+        final CompletableFuture<?>[] reads = new CompletableFuture<?>[objectIds.size()];
+        synchronized (this) {
+            final var session = session();
+            var i = 0;
+            for (final var objectId : objectIds) {
+                reads[i++] = session.request(objectId).thenAccept(content -> {
+                    if (content != null) {
+                        contents.put(objectId, content);
+                    }
+                });
+            }
+            session.flush();
+        }
+        return CompletableFuture.allOf(reads).thenApply(ignored -> contents);
+    }
+
+    synchronized void stop() {
+        if (session != null) {
+            session.stop();
+            session = null;
+        }
+    }
+
+    private synchronized void kill() {
+        if (session != null) {
+            session.process.destroyForcibly();
+        }
+    }
+
+    private Session session() {
+        if (session == null) {
+            session = Session.start(this, directory);
+        }
+        return session;
+    }
+
+    private synchronized void stopIfIdle(final Session idleCandidate) {
+        if (session == idleCandidate && idleCandidate.isIdle()) {
+            stop();
+        }
+    }
+
+    private synchronized void detach(final Session exited) {
+        if (session == exited) {
+            session = null;
+        }
+    }
+
+    /// Header format:
+    /// <object_id> <type> <size>
+    /// or, if there is no such object:
+    /// <object_id> missing
+    private static int objectSize(final String header) throws IOException {
+        if (header.endsWith(MISSING) || header.endsWith(AMBIGUOUS)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(header.substring(header.lastIndexOf(' ') + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected git cat-file header: " + header, e);
+        }
+    }
+
+    @Nullable
+    private static String readLine(final InputStream in) throws IOException {
+        final var line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != NEWLINE) {
+            if (b == -1) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("Unterminated git cat-file header");
+            }
+            line.write(b);
+        }
+        return line.toString(US_ASCII);
+    }
+
+    private static final class Session {
+        private final CatFileBatch batch;
+        private final Process process;
+        private final OutputStream stdin;
+        private final Queue<CompletableFuture<byte[]>> pending = new ConcurrentLinkedQueue<>();
+        @Nullable
+        private ScheduledFuture<?> idleCheck;
+        private long lastUseTs = System.currentTimeMillis();
+
+        private Session(final CatFileBatch batch, final Process process) {
+            this.batch = batch;
+            this.process = process;
+            this.stdin = new BufferedOutputStream(process.getOutputStream());
+        }
+
+        static Session start(final CatFileBatch batch, final Path directory) {
+            final Process process;
+            try {
+                process = new ProcessBuilder("git", "cat-file", "--batch")
+                        .directory(directory.toFile())
+                        .redirectError(ProcessBuilder.Redirect.DISCARD)
+                        .start();
+            } catch (IOException e) {
+                throw new GitException(e);
+            }
+            final var session = new Session(batch, process);
+            final var idleTimeoutMillis = IDLE_TIMEOUT.toMillis();
+            session.idleCheck = IDLE_CHECKER.scheduleWithFixedDelay(
+                    () -> batch.stopIfIdle(session),
+                    idleTimeoutMillis, idleTimeoutMillis, TimeUnit.MILLISECONDS
+            );
+            final var reader = new Thread(session::readResponses, "git-cat-file-" + directory.getFileName());
+            reader.setDaemon(true);
+            reader.start();
+            return session;
+        }
+
+        /// Must be called under the batch lock, so the requests are written in the order they are enqueued
+        CompletableFuture<byte[]> request(final String objectId) {
+            final var response = new CompletableFuture<byte[]>();
+            pending.add(response);
+            lastUseTs = System.currentTimeMillis();
+            try {
+                stdin.write(objectId.getBytes(US_ASCII));
+                stdin.write(NEWLINE);
+            } catch (IOException e) {
+                /// The reader fails all the pending responses as soon as it sees the process stdout closed
+                process.destroyForcibly();
+            }
+            return response;
+        }
+
+        void flush() {
+            try {
+                stdin.flush();
+            } catch (IOException e) {
+                process.destroyForcibly();
+            }
+        }
+
+        boolean isIdle() {
+            return pending.isEmpty() && System.currentTimeMillis() - lastUseTs >= IDLE_TIMEOUT.toMillis();
+        }
+
+        void stop() {
+            if (idleCheck != null) {
+                idleCheck.cancel(false);
+            }
+            try {
+                /// git cat-file exits as soon as its stdin is closed
+                stdin.close();
+            } catch (IOException e) {
+                process.destroyForcibly();
+            }
+        }
+
+        private void readResponses() {
+            IOException failure = null;
+            try (var stdout = new BufferedInputStream(process.getInputStream())) {
+                String header;
+                while ((header = readLine(stdout)) != null) {
+                    final var response = pending.poll();
+                    if (response == null) {
+                        throw new IOException("Unexpected git cat-file output: " + header);
+                    }
+                    final var size = objectSize(header);
+                    if (size < 0) {
+                        response.complete(null);
+                        continue;
+                    }
+                    final var content = stdout.readNBytes(size);
+                    if (content.length != size || stdout.read() != NEWLINE) {
+                        throw new EOFException("Truncated git cat-file output of " + header);
+                    }
+                    response.complete(content);
+                }
+            } catch (IOException e) {
+                failure = e;
+                process.destroyForcibly();
+            } finally {
+                /// No more requests can be enqueued after the session is detached
+                batch.detach(this);
+                if (idleCheck != null) {
+                    idleCheck.cancel(false);
+                }
+                final var exception = new GitException(failure != null ? failure : new EOFException("git cat-file exited"));
+                CompletableFuture<byte[]> response;
+                while ((response = pending.poll()) != null) {
+                    response.completeExceptionally(exception);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.accula.api.code.git;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.Value;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the results of the git commands that are pure functions of commit SHAs,
+ * i.e. tree listings and raw diffs, so they never go stale.
+ * Results for refs other than full SHAs (e.g. branch names) and failed commands are never cached.
+ * Entries are shared by all the repos, since commit SHAs are content hashes too.
+ *
+ * @author Anton Lamtev
+ */
+final class CommitCache {
+    /// Listed files and diff entries in total. Their ids and filenames are interned by {@link GitOutput}
+    private static final long MAX_ENTRIES = 1_000_000L;
+    private static final Pattern SHA = Pattern.compile("[0-9a-f]{40}");
+
+    private final Cache<String, List<GitFile>> trees = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_ENTRIES)
+            .weigher((String commitSha, List<GitFile> files) -> files.size() + 1)
+            .build();
+    private final Cache<DiffKey, List<GitDiffEntry>> diffs = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_ENTRIES)
+            .weigher((DiffKey key, List<GitDiffEntry> entries) -> entries.size() + 1)
+            .build();
+
+    List<GitFile> tree(final String commitSha, final Supplier<Optional<List<GitFile>>> lsTree) {
+        if (!isSha(commitSha)) {
+            return lsTree.get().orElse(List.of());
+        }
+        return cached(trees, commitSha, lsTree);
+    }
+
+    List<GitDiffEntry> diff(final String baseSha,
+                            final String headSha,
+                            final int findRenamesMinSimilarityIndex,
+                            final Supplier<Optional<List<GitDiffEntry>>> diff) {
+        if (!isSha(baseSha) || !isSha(headSha)) {
+            return diff.get().orElse(List.of());
+        }
+        return cached(diffs, new DiffKey(baseSha, headSha, findRenamesMinSimilarityIndex), diff);
+    }
+
+    private static <K, V> List<V> cached(final Cache<K, List<V>> cache, final K key, final Supplier<Optional<List<V>>> command) {
+        final var cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        final var result = command.get();
+        if (result.isEmpty()) {
+            return List.of();
+        }
+        final var entries = List.copyOf(result.get());
+        cache.put(key, entries);
+        return entries;
+    }
+
+    static boolean isSha(final String ref) {
+        return SHA.matcher(ref).matches();
+    }
+
+    @Value
+    private static class DiffKey {
+        String baseSha;
+        String headSha;
+        int findRenamesMinSimilarityIndex;
+    }
+}
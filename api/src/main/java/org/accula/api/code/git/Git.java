@@ -1,9 +1,12 @@
 package org.accula.api.code.git;
 
-import lombok.AccessLevel;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import lombok.RequiredArgsConstructor;
+import lombok.Value;
 import org.accula.api.util.Sync;
 import org.jetbrains.annotations.Nullable;
+import org.springframework.util.FileSystemUtils;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -13,44 +16,47 @@ import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.StringJoiner;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 
 /**
  * @author Anton Lamtev
  */
 @RequiredArgsConstructor
-public final class Git {
-    private static final String ADDITION = "A";
-    private static final String DELETION = "D";
-    private static final String MODIFICATION = "M";
-    private static final String RENAMING = "R";
-    private static final String DELETED_OBJECT_ID = "0000000";
+public final class Git implements AutoCloseable {
     private static final int SUCCESS = 0;
-    private static final byte[] NEWLINE = System.lineSeparator().getBytes(UTF_8);
     private static final String ALREADY_EXISTS = "already exists";
-    private static final String JOINER_NEWLINE = "";
+    private static final String ORIGIN = "origin";
     private static final long INTERVAL_SINCE_LAST_FETCH_THRESHOLD = Duration.ofSeconds(5L).toMillis();
+    /// Per repo. A commit evicted from the cache is only checked once more
+    private static final long MAX_PRESENT_COMMITS = 100_000L;
 
     private final Map<Path, Repo> repos = new ConcurrentHashMap<>();
+    private final CommitCache commitCache = new CommitCache();
     private final Path root;
     private final ExecutorService executor;
+    private final BlobCache blobCache;
+    private final CloneMode cloneMode;
+    private final Timeouts timeouts;
 
     public CompletableFuture<Repo> repo(final Path directory) {
         return readingAsync(directory, () -> {
@@ -63,115 +69,171 @@ public final class Git {
     }
 
     public CompletableFuture<Repo> clone(final String url, final String subdirectory) {
+        return clone(url, subdirectory, null);
+    }
+
+    /**
+     * Clones the repo borrowing objects from the reference repo through git alternates, if the reference repo exists,
+     * so the history shared by many forks is stored and fetched once.
+     * Unreachable objects of the reference repo are never pruned afterwards, since the clone may depend on them.
+     */
+    public CompletableFuture<Repo> clone(final String url, final String subdirectory, @Nullable final Path reference) {
         return writingAsync(subdirectory, () -> {
             if (Files.exists(root.resolve(subdirectory))) {
                 return repoOf(Path.of(subdirectory));
             }
+            final var command = new ArrayList<>(List.of("git", "clone"));
+            if (cloneMode == CloneMode.BLOBLESS) {
+                /// Files are read from the object store only, so the working tree is never checked out
+                command.addAll(List.of("--filter=blob:none", "--no-checkout"));
+            }
+            if (reference != null && !reference.equals(Path.of(subdirectory)) && keepObjects(reference)) {
+                command.add("--reference-if-able");
+                command.add(root.resolve(reference).toAbsolutePath().toString());
+            }
+            command.add(url);
+            command.add(subdirectory);
+            final var process = GitCall.start(new ProcessBuilder(command).directory(root.toFile()), timeouts.getClone());
+            var cloned = false;
             try {
-                final var process = new ProcessBuilder()
-                        .directory(root.toFile())
-                        .command("git", "clone", url, subdirectory)
-                        .start();
-                //TODO: clone timeout
-                return process.waitFor() == SUCCESS ? repoOf(Path.of(subdirectory)) : null;
-            } catch (IOException | InterruptedException e) {
-                throw wrap(e);
+                cloned = GitCall.waitFor(process) == SUCCESS;
+            } finally {
+                /// A clone destroyed forcibly has no chance to clean up after itself, so it would be taken for a complete repo later
+                if (!cloned) {
+                    deleteRecursively(root.resolve(subdirectory));
+                }
             }
+            return cloned ? repoOf(Path.of(subdirectory)) : null;
         });
     }
 
-    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    private boolean keepObjects(final Path reference) {
+        final var referenceDirectory = root.resolve(reference);
+        if (!Files.isDirectory(referenceDirectory.resolve(".git"))) {
+            return false;
+        }
+        return safe(reference).writing(() -> {
+            final var process = GitCall.start(
+                    new ProcessBuilder("git", "config", "gc.pruneExpire", "never").directory(referenceDirectory.toFile()),
+                    timeouts.getRead()
+            );
+            return GitCall.waitFor(process) == SUCCESS;
+        }).get();
+    }
+
+    /// Stops the long-lived git processes of the repos
+    @Override
+    public void close() {
+        repos.values().forEach(repo -> repo.catFileBatch.stop());
+    }
+
+    public enum CloneMode {
+        FULL,
+        /// Blobs are not downloaded by clones and fetches, they are fetched in bulk when the files of a commit are read for the first time
+        BLOBLESS,
+    }
+
+    /// Git processes are destroyed forcibly when they outlive the timeouts of their operations
+    @Value
+    public static class Timeouts {
+        Duration clone;
+        /// Fetching operations: fetch, remote add and remote update
+        Duration fetch;
+        /// Reading operations: diff, ls-tree, show, cat-file and the like
+        Duration read;
+    }
+
+    /**
+     * Fetches only ever add objects, and objects never change once they are in the object store.
+     * So reads of the commits that are present locally skip the repo lock and never wait for concurrent fetches.
+     * Reads of missing commits fetch them first, with a single fetch shared by all the concurrent readers.
+     */
     public final class Repo {
         private final Path directory;
         private final Sync sync = new Sync();
-        private long lastFetchTs = 0L;
+        private final CatFileBatch catFileBatch;
+        private final Cache<String, Boolean> presentCommits = CacheBuilder.newBuilder()
+                .maximumSize(MAX_PRESENT_COMMITS)
+                .build();
+        private final AtomicReference<CompletableFuture<Repo>> pendingFetch = new AtomicReference<>();
+        private volatile long lastFetchTs = 0L;
+
+        private Repo(final Path directory) {
+            this.directory = directory;
+            this.catFileBatch = new CatFileBatch(root.resolve(directory));
+        }
 
         public CompletableFuture<Repo> fetch() {
-            return writingAsync(() -> {
-                if (System.currentTimeMillis() - lastFetchTs < INTERVAL_SINCE_LAST_FETCH_THRESHOLD) {
-                    return this;
-                }
-                final var process = git("fetch");
-                try {
-                    //TODO: fetch timeout
-                    final var ret = process.waitFor();
-                    lastFetchTs = System.currentTimeMillis();
-                    return ret == SUCCESS ? this : null;
-                } catch (InterruptedException e) {
-                    throw wrap(e);
-                }
-            });
+            return GitCall.supplyAsync(this::fetchShared, executor);
+        }
+
+        /**
+         * @return whether all the commits are present locally, so reading them needs no fetching
+         */
+        public CompletableFuture<Boolean> containsCommits(final List<String> commitShas) {
+            return GitCall.supplyAsync(() -> isPresent(commitShas), executor);
         }
 
         public CompletableFuture<List<GitDiffEntry>> diff(final String baseRef,
                                                           final String headRef,
                                                           final int findRenamesMinSimilarityIndex) {
-            return readingAsync(() -> {
+            return readingAsync(List.of(baseRef, headRef), () -> commitCache.diff(baseRef, headRef, findRenamesMinSimilarityIndex, () -> {
+                final var findRenames = String.format("-M%02d", findRenamesMinSimilarityIndex);
                 final var command = findRenamesMinSimilarityIndex == 0 || findRenamesMinSimilarityIndex == 100
-                        ? new String[]{"diff", "--raw", baseRef, headRef}
-                        : new String[]{"diff", String.format("-M%02d", findRenamesMinSimilarityIndex), "--raw", baseRef, headRef};
+                        ? new String[]{"diff", "--raw", "-z", "--no-abbrev", baseRef, headRef}
+                        : new String[]{"diff", findRenames, "--raw", "-z", "--no-abbrev", baseRef, headRef};
 
-                final var process = git(command);
+                final var process = git(timeouts.getRead(), command);
 
-                return usingStdoutLines(process, lines -> lines
-                        .map(Git::parseDiffEntry)
-                        .filter(Objects::nonNull)
-                        .collect(Collectors.toList()))
-                        .orElse(Collections.emptyList());
-            });
+                return usingStdout(process, GitOutput::diffEntries);
+            }));
         }
 
+        /**
+         * In {@link CloneMode#BLOBLESS} mode the blobs that are missing locally are fetched in bulk before reading,
+         * instead of being faulted in one at a time by cat-file
+         */
         public CompletableFuture<Map<Identifiable, String>> catFiles(final List<? extends Identifiable> objectIds) {
             if (objectIds.isEmpty()) {
                 return CompletableFuture.completedFuture(Collections.emptyMap());
             }
-            return readingAsync(() -> {
-                final var process = git("cat-file", "--batch");
-
-                return usingStdoutLines(process, lines -> {
-                    try (var stdin = process.getOutputStream()) {
-                        for (final var objectId : objectIds) {
-                            stdin.write(objectId.getId().getBytes(UTF_8));
-                            stdin.write(NEWLINE);
-                        }
-                        stdin.flush();
-                    } catch (IOException e) {
-                        throw wrap(e);
+            /// Blob ids are taken from the trees of the commits read before, so the blobs need neither the lock nor fetching
+            return GitCall.supplyAsync(() -> {
+                final var ids = objectIds.stream().map(Identifiable::getId).collect(toCollection(HashSet::new));
+                final var objectContents = new HashMap<>(blobCache.getAllPresent(ids));
+                ids.removeAll(objectContents.keySet());
+                if (!ids.isEmpty()) {
+                    if (cloneMode == CloneMode.BLOBLESS) {
+                        fetchMissingBlobs(ids);
                     }
-
-                    final var lineList = lines.collect(Collectors.toList());
-                    return filesContent(lineList, objectIds);
-                }).orElse(Collections.emptyMap());
-            });
+                    final var readContents = catFileBatch.read(ids, timeouts.getRead());
+                    blobCache.putAll(readContents);
+                    objectContents.putAll(readContents);
+                }
+                return filesContent(objectContents, objectIds);
+            }, executor);
         }
 
         public CompletableFuture<List<GitFile>> show(final String commitSha) {
-            return readingAsync(() -> {
-                final var process = git("show", "--raw", commitSha);
+            return readingAsync(List.of(commitSha), () -> {
+                final var process = git(timeouts.getRead(), "show", "--raw", "-z", "--no-abbrev", "--format=", commitSha);
 
-                return usingStdoutLines(process, lines -> lines
-                        .map(Git::parseShowEntry)
-                        .filter(Objects::nonNull)
-                        .collect(Collectors.toList()))
+                return usingStdout(process, GitOutput::showEntries)
                         .orElse(Collections.emptyList());
             });
         }
 
         public CompletableFuture<List<GitFile>> lsTree(final String commitSha) {
-            return readingAsync(() -> {
-                final var process = git("ls-tree", "-r", commitSha);
+            return readingAsync(List.of(commitSha), () -> commitCache.tree(commitSha, () -> {
+                final var process = git(timeouts.getRead(), "ls-tree", "-r", "-z", commitSha);
 
-                return usingStdoutLines(process, lines -> lines
-                        .map(Git::parseLsEntry)
-                        .filter(Objects::nonNull)
-                        .collect(Collectors.toList()))
-                        .orElse(Collections.emptyList());
-            });
+                return usingStdout(process, GitOutput::lsTreeEntries);
+            }));
         }
 
         public CompletableFuture<Set<String>> remote() {
             return readingAsync(() -> {
-                final var process = git("remote");
+                final var process = git(timeouts.getRead(), "remote");
                 return usingStdoutLines(process, lines -> lines.collect(toSet()))
                         .orElse(Collections.emptySet());
             });
@@ -179,197 +241,230 @@ public final class Git {
 
         public CompletableFuture<Repo> remoteAdd(final String url, final String uniqueName) {
             return writingAsync(() -> {
-                final var process = git("remote", "add", "-f", uniqueName, url);
-                try {
-                    //TODO: remote-add -f timeout
-                    final var ret = process.waitFor();
-                    final Predicate<Process> remoteAlreadyExists = proc -> usingStderrLines(proc, Stream::findFirst)
-                            .orElse("")
-                            .contains(ALREADY_EXISTS);
-                    return ret == SUCCESS
-                            ? this
-                            : remoteAlreadyExists.test(process) ? this : null;
-                } catch (InterruptedException e) {
-                    throw wrap(e);
+                final var process = cloneMode == CloneMode.BLOBLESS
+                        ? git(timeouts.getRead(), "remote", "add", uniqueName, url)
+                        : git(timeouts.getFetch(), "remote", "add", "-f", uniqueName, url);
+                final var ret = GitCall.waitFor(process);
+                final Predicate<Process> remoteAlreadyExists = proc -> usingStderrLines(proc, Stream::findFirst)
+                        .orElse("")
+                        .contains(ALREADY_EXISTS);
+                if (ret != SUCCESS) {
+                    return remoteAlreadyExists.test(process) ? this : null;
                 }
+                if (cloneMode == CloneMode.FULL) {
+                    return this;
+                }
+                /// The remote is a promisor too, so the blobs that only the remote has are fetched on demand from it
+                final var added = succeeded(timeouts.getRead(), "config", "remote." + uniqueName + ".promisor", "true")
+                        && succeeded(timeouts.getRead(), "config", "remote." + uniqueName + ".partialclonefilter", "blob:none")
+                        && succeeded(timeouts.getFetch(), "fetch", uniqueName);
+                return added ? this : null;
             });
         }
 
         public CompletableFuture<Repo> remoteUpdate(final String name) {
             return writingAsync(() -> {
-                final var process = git("remote", "update", name);
-                try {
-                    //TODO: remote update timeout
-                    return process.waitFor() == SUCCESS ? this : null;
-                } catch (InterruptedException e) {
-                    throw wrap(e);
-                }
+                final var process = git(timeouts.getFetch(), "remote", "update", name);
+                return GitCall.waitFor(process) == SUCCESS ? this : null;
             });
         }
 
-        private Process git(final String... command) {
-            try {
-                final var cmd = new ArrayList<String>();
-                cmd.add("git");
-                cmd.addAll(List.of(command));
-                return new ProcessBuilder(cmd)
-                        .directory(root.resolve(directory).toFile())
-                        .start();
-            } catch (IOException e) {
-                throw wrap(e);
-            }
+        private boolean succeeded(final Duration timeout, final String... command) {
+            return GitCall.waitFor(git(timeout, command)) == SUCCESS;
         }
 
-        private <T> CompletableFuture<T> readingAsync(final Supplier<T> readOp) {
-            return CompletableFuture.supplyAsync(sync.reading(readOp), executor);
+        private Process git(final Duration timeout, final String... command) {
+            final var cmd = new ArrayList<String>();
+            cmd.add("git");
+            cmd.addAll(List.of(command));
+            return GitCall.start(new ProcessBuilder(cmd).directory(root.resolve(directory).toFile()), timeout);
         }
 
-        private <T> CompletableFuture<T> writingAsync(final Supplier<T> writeOp) {
-            return CompletableFuture.supplyAsync(sync.writing(writeOp), executor);
+        private <T> CompletableFuture<T> readingAsync(final Supplier<T> readOp) {
+            return GitCall.supplyAsync(sync.reading(readOp), executor);
         }
-    }
 
-    private static Map<Identifiable, String> filesContent(final List<String> lines, final List<? extends Identifiable> objectIds) {
-        if (lines.isEmpty()) {
-            return Collections.emptyMap();
-        }
-        final Map<Identifiable, String> filesContent = new HashMap<>(objectIds.size());
-        int fileToDiscoverIdx = 0;
-        int currentFileLineCounter = 1;
-        StringJoiner currentFile = null;
-        int fromLine = Integer.MIN_VALUE;
-        int toLine = Integer.MAX_VALUE;
-        for (final var line : lines) {
-            final Identifiable identifiable;
-            if (fileToDiscoverIdx < objectIds.size() && line.startsWith((identifiable = objectIds.get(fileToDiscoverIdx)).getId())) {
-                currentFileLineCounter = 1;
-                if (identifiable instanceof Snippet) {
-                    final var snippet = (Snippet) identifiable;
-                    fromLine = snippet.getFromLine();
-                    toLine = snippet.getToLine();
-                } else {
-                    fromLine = Integer.MIN_VALUE;
-                    toLine = Integer.MAX_VALUE;
+        /// Refs other than full SHAs (e.g. branch names) may move with fetches, so their reads are still locked
+        private <T> CompletableFuture<T> readingAsync(final List<String> commitShas, final Supplier<T> readOp) {
+            return GitCall.supplyAsync(() -> {
+                if (isPresent(commitShas)) {
+                    return readOp.get();
                 }
-                if (fileToDiscoverIdx != 0 && currentFile.length() > 0) {
-                    filesContent.put(objectIds.get(fileToDiscoverIdx - 1), currentFile.toString());
+                if (commitShas.stream().allMatch(CommitCache::isSha)) {
+                    fetchShared();
                 }
-                ++fileToDiscoverIdx;
+                return sync.reading(readOp).get();
+            }, executor);
+        }
 
-                currentFile = new StringJoiner(System.lineSeparator());
-                continue;
+        /// Unlike cat-file, rev-list with --missing never fetches missing objects on demand from the promisor remote.
+        /// The commits not known to be present are checked all at once by a single rev-list
+        private boolean isPresent(final List<String> commitShas) {
+            final var uncheckedShas = commitShas
+                    .stream()
+                    .filter(sha -> presentCommits.getIfPresent(sha) == null)
+                    .distinct()
+                    .collect(toList());
+            if (uncheckedShas.isEmpty()) {
+                return true;
             }
-            final var lineNumber = currentFileLineCounter++;
-            if (lineNumber >= fromLine && lineNumber <= toLine) {
-                currentFile.add(line);
+            if (!uncheckedShas.stream().allMatch(CommitCache::isSha)) {
+                return false;
             }
-            if (lineNumber == toLine) {
-                currentFile.add(JOINER_NEWLINE);
+            final var command = new ArrayList<>(List.of("rev-list", "--quiet", "--no-walk", "--missing=allow-promisor"));
+            command.addAll(uncheckedShas);
+            if (!succeeded(timeouts.getRead(), command.toArray(String[]::new))) {
+                return false;
             }
+            uncheckedShas.forEach(sha -> presentCommits.put(sha, Boolean.TRUE));
+            return true;
         }
-        if (fileToDiscoverIdx != 0 && currentFile.length() > 0) {
-            filesContent.put(objectIds.get(fileToDiscoverIdx - 1), currentFile.toString());
-        }
-        return filesContent;
-    }
 
-    /// Line format:
-    ///      0                1                2              3        4        5             6
-    /// :base_file_mode head_file_mode base_object_id head_object_id type base_filename head_filename
-    @Nullable
-    private static GitDiffEntry parseDiffEntry(final String line) {
-        final var components = line.split("\\s+");
-        switch (components.length) {
-            case 6:
-                return switch (components[4]) {
-                    case ADDITION -> GitDiffEntry.addition(components[3], components[5]);
-                    case DELETION -> GitDiffEntry.deletion(components[2], components[5]);
-                    case MODIFICATION -> GitDiffEntry.modification(components[2], components[3], components[5]);
-                    default -> null;
-                };
-            case 7: {
-                final var typeComponent = components[4];
-                if (!typeComponent.startsWith(RENAMING)) {
-                    return null;
+        /// Fetching objects by their ids neither moves refs nor removes anything, so it needs no lock.
+        /// The blobs some promisor remote has not got are left for cat-file to fault in one at a time
+        private void fetchMissingBlobs(final Set<String> blobIds) {
+            var missing = missingObjects(blobIds);
+            if (missing.isEmpty()) {
+                return;
+            }
+            for (final var remote : promisorRemotes()) {
+                final var process = git(
+                        timeouts.getFetch(),
+                        "-c", "fetch.negotiationAlgorithm=noop",
+                        "fetch", remote, "--no-tags", "--no-write-fetch-head", "--recurse-submodules=no", "--filter=blob:none", "--stdin"
+                );
+                try (var stdin = process.getOutputStream()) {
+                    stdin.write(String.join("\n", missing).concat("\n").getBytes(UTF_8));
+                } catch (IOException e) {
+                    process.destroyForcibly();
                 }
-
-                int similarityIndex;
-                try {
-                    similarityIndex = Integer.parseInt(typeComponent.substring(1));
-                } catch (NumberFormatException e) {
-                    similarityIndex = 0;
+                if (GitCall.waitFor(process) != SUCCESS) {
+                    continue;
+                }
+                missing = missingObjects(missing);
+                if (missing.isEmpty()) {
+                    return;
                 }
+            }
+        }
 
-                return GitDiffEntry.renaming(components[2], components[5], components[3], components[6], similarityIndex);
+        /// Unlike cat-file, rev-list with --missing=print never fetches objects on demand, and --ignore-missing makes it
+        /// skip the missing ones of the given objects, so only the present ones are listed. Only the given objects are visited,
+        /// since blobs have no objects to walk to
+        private Set<String> missingObjects(final Set<String> objectIds) {
+            final var process = git(
+                    timeouts.getRead(),
+                    "rev-list", "--objects", "--no-walk", "--missing=print", "--ignore-missing", "--stdin"
+            );
+            try (var stdin = process.getOutputStream()) {
+                stdin.write(String.join("\n", objectIds).concat("\n").getBytes(UTF_8));
+            } catch (IOException e) {
+                process.destroyForcibly();
             }
-            default:
-                return null;
+            return usingStdoutLines(process, lines -> {
+                final Set<String> missing = new HashSet<>(objectIds);
+                lines.map(String::strip).forEach(missing::remove);
+                return missing;
+            })
+                    .orElse(Collections.emptySet());
         }
-    }
 
-    /// Line format:
-    ///      0                1                2              3        4        5             6
-    /// :base_file_mode head_file_mode base_object_id head_object_id type base_filename head_filename
-    @Nullable
-    private static GitFile parseShowEntry(final String line) {
-        if (line.isEmpty() || line.charAt(0) != ':') {
-            return null;
+        /// The repo is cloned from origin, so most of the blobs are expected to be there
+        private List<String> promisorRemotes() {
+            final var process = git(timeouts.getRead(), "config", "--get-regexp", "^remote\\..*\\.promisor$");
+            return usingStdoutLines(process, lines -> lines
+                    .filter(line -> line.endsWith(" true"))
+                    .map(line -> line.substring("remote.".length(), line.length() - ".promisor true".length()))
+                    .sorted(Comparator.comparing((String remote) -> !remote.equals(ORIGIN)).thenComparing(Comparator.naturalOrder()))
+                    .collect(toList()))
+                    .orElse(Collections.emptyList());
         }
-        final var components = line.split("\\s+");
-        if (components.length != 6 && components.length != 7) {
-            return null;
+
+        /// The caller that finds no fetch in progress runs it in its own thread, and the others wait for its result,
+        /// so waiting never occupies the executor threads the fetch itself would need.
+        /// The fetch is detached from the caller operation, so cancelling the caller never fails the others.
+        /// Fetches are throttled whatever their outcome, so reads of a commit no remote has do not fetch again and again
+        private Repo fetchShared() {
+            if (System.currentTimeMillis() - lastFetchTs < INTERVAL_SINCE_LAST_FETCH_THRESHOLD) {
+                return this;
+            }
+            final var fetch = new CompletableFuture<Repo>();
+            final var pending = pendingFetch.compareAndExchange(null, fetch);
+            if (pending != null) {
+                return await(pending);
+            }
+            try {
+                final var fetched = GitCall.detached(sync.writing(() -> {
+                    final var process = git(timeouts.getFetch(), "fetch");
+                    return GitCall.waitFor(process) == SUCCESS ? this : null;
+                }));
+                fetch.complete(fetched);
+                return fetched;
+            } catch (RuntimeException e) {
+                fetch.completeExceptionally(e);
+                throw e;
+            } finally {
+                lastFetchTs = System.currentTimeMillis();
+                pendingFetch.set(null);
+            }
         }
-        final var objectId = components[3];
-        if (objectId.startsWith(DELETED_OBJECT_ID)) {
-            return null;
+
+        private <T> CompletableFuture<T> writingAsync(final Supplier<T> writeOp) {
+            return GitCall.supplyAsync(sync.writing(writeOp), executor);
         }
-        return switch (components.length) {
-            case 6 -> GitFile.of(objectId, components[5]);
-            case 7 -> GitFile.of(objectId, components[6]);
-            default -> null;
-        };
     }
 
-    /// Line format:
-    ///      0        1         2         3
-    /// file_mode file_type object_id filename
-    @Nullable
-    private static GitFile parseLsEntry(final String line) {
-        final var components = line.split("\\s+");
-        if (components.length != 4) {
-            return null;
+    private static Map<Identifiable, String> filesContent(final Map<String, byte[]> objectContents,
+                                                          final List<? extends Identifiable> objectIds) {
+        final Map<Identifiable, String> filesContent = new HashMap<>(objectIds.size());
+        for (final var identifiable : objectIds) {
+            final var objectContent = objectContents.get(identifiable.getId());
+            if (objectContent == null) {
+                continue;
+            }
+            final String content;
+            if (identifiable instanceof Snippet) {
+                final var snippet = (Snippet) identifiable;
+                content = GitOutput.lines(objectContent, snippet.getFromLine(), snippet.getToLine());
+            } else {
+                content = new String(objectContent, UTF_8);
+            }
+            if (!content.isEmpty()) {
+                filesContent.put(identifiable, content);
+            }
+        }
+        return filesContent;
+    }
+
+    private static <T> Optional<T> usingStdout(final Process process, final Function<byte[], T> stdoutUse) {
+        try (var stdout = process.getInputStream()) {
+            final var res = stdoutUse.apply(stdout.readAllBytes());
+            return GitCall.waitFor(process) == SUCCESS ? Optional.of(res) : Optional.empty();
+        } catch (IOException e) {
+            throw wrap(e);
         }
-        return GitFile.of(components[2], components[3]);
     }
 
     private static <T> Optional<T> usingStdoutLines(final Process process, final Function<Stream<String>, T> stdoutLinesUse) {
         try (var stdoutLines = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8)).lines()) {
             final var res = stdoutLinesUse.apply(stdoutLines);
-            try {
-                return process.waitFor() == SUCCESS ? Optional.of(res) : Optional.empty();
-            } catch (InterruptedException e) {
-                throw wrap(e);
-            }
+            return GitCall.waitFor(process) == SUCCESS ? Optional.of(res) : Optional.empty();
         }
     }
 
     private static <T> T usingStderrLines(final Process process, final Function<Stream<String>, T> stderrLinesUse) {
         try (var stdoutLines = new BufferedReader(new InputStreamReader(process.getErrorStream(), UTF_8)).lines()) {
-            try {
-                process.waitFor();
-                return stderrLinesUse.apply(stdoutLines);
-            } catch (InterruptedException e) {
-                throw wrap(e);
-            }
+            GitCall.waitFor(process);
+            return stderrLinesUse.apply(stdoutLines);
         }
     }
 
     private <T> CompletableFuture<T> readingAsync(final Path directory, final Supplier<T> readOp) {
-        return CompletableFuture.supplyAsync(safe(directory).reading(readOp), executor);
+        return GitCall.supplyAsync(safe(directory).reading(readOp), executor);
     }
 
     private <T> CompletableFuture<T> writingAsync(final String directory, final Supplier<T> writeOp) {
-        return CompletableFuture.supplyAsync(safe(directory).writing(writeOp), executor);
+        return GitCall.supplyAsync(safe(directory).writing(writeOp), executor);
     }
 
     private Sync safe(final String key) {
@@ -384,6 +479,24 @@ public final class Git {
         return repos.computeIfAbsent(path, Repo::new);
     }
 
+    private static void deleteRecursively(final Path directory) {
+        try {
+            FileSystemUtils.deleteRecursively(directory);
+        } catch (IOException e) {
+            throw new GitException(e);
+        }
+    }
+
+    private static <T> T await(final CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : wrap(e.getCause());
+        } catch (InterruptedException e) {
+            throw wrap(e);
+        }
+    }
+
     private static GitException wrap(final Throwable e) {
         return new GitException(e);
     }
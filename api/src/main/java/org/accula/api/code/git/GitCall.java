@@ -0,0 +1,135 @@
+package org.accula.api.code.git;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * A single asynchronous operation of {@link Git} and the git processes it starts.
+ * The processes are destroyed forcibly as soon as the operation future is cancelled
+ * or they outlive their deadline, so neither a gone subscriber nor a hanging remote
+ * can pin an executor thread and a repo lock.
+ *
+ * @author Anton Lamtev
+ */
+final class GitCall {
+    private static final ThreadLocal<GitCall> CURRENT = new ThreadLocal<>();
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final var thread = new Thread(runnable, "git-process-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<Process, String> TIMED_OUT = new ConcurrentHashMap<>();
+
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+
+    private GitCall() {
+    }
+
+    static <T> CompletableFuture<T> supplyAsync(final Supplier<T> operation, final Executor executor) {
+        final var call = new GitCall();
+        final var future = CompletableFuture.supplyAsync(() -> call.run(operation), executor);
+        future.whenComplete((result, e) -> {
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Starts the process as a part of the current operation, if any
+     *
+     * @param timeout the process is destroyed forcibly after, and then {@link #waitFor} throws
+     */
+    static Process start(final ProcessBuilder processBuilder, final Duration timeout) {
+        final var call = CURRENT.get();
+        if (call != null && call.cancelled) {
+            throw new CancellationException();
+        }
+        final Process process;
+        try {
+            process = processBuilder.start();
+        } catch (IOException e) {
+            throw new GitException(e);
+        }
+        final var deadline = WATCHDOG.schedule(() -> {
+            TIMED_OUT.put(process, String.join(" ", processBuilder.command()) + " timed out after " + timeout);
+            process.destroyForcibly();
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        process.onExit().thenRun(() -> deadline.cancel(false));
+        if (call != null) {
+            call.processes.add(process);
+            process.onExit().thenRun(() -> call.processes.remove(process));
+            /// The operation may have been cancelled while the process was starting
+            if (call.cancelled) {
+                process.destroyForcibly();
+            }
+        }
+        return process;
+    }
+
+    /**
+     * Runs the operation apart from the current one, so the processes it starts are not destroyed
+     * when the current operation is cancelled, but only when they outlive their deadlines.
+     * Meant for the work shared by several operations
+     */
+    static <T> T detached(final Supplier<T> operation) {
+        final var call = CURRENT.get();
+        CURRENT.remove();
+        try {
+            return operation.get();
+        } finally {
+            if (call != null) {
+                CURRENT.set(call);
+            }
+        }
+    }
+
+    /**
+     * @return exit code of the process
+     * @throws GitException if the process has been destroyed because of its timeout
+     */
+    static int waitFor(final Process process) {
+        try {
+            final var exitCode = process.waitFor();
+            final var timeout = TIMED_OUT.remove(process);
+            if (timeout != null) {
+                throw new GitException(new TimeoutException(timeout));
+            }
+            return exitCode;
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            TIMED_OUT.remove(process);
+            throw new GitException(e);
+        }
+    }
+
+    private <T> T run(final Supplier<T> operation) {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        CURRENT.set(this);
+        try {
+            return operation.get();
+        } finally {
+            CURRENT.remove();
+        }
+    }
+
+    private void cancel() {
+        cancelled = true;
+        processes.forEach(Process::destroyForcibly);
+    }
+}
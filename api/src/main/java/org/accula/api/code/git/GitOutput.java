@@ -0,0 +1,220 @@
+package org.accula.api.code.git;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Byte level parsers of the NUL-delimited ({@code -z}) output of git plumbing commands.
+ * Paths are taken as is, so they may contain whitespace and are never quoted.
+ * Object ids and paths are interned, so the listings of many commits of a repo share them.
+ *
+ * @author Anton Lamtev
+ */
+final class GitOutput {
+    private static final byte NUL = 0;
+    private static final byte SPACE = ' ';
+    private static final byte TAB = '\t';
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+    private static final byte COLON = ':';
+    private static final char ADDITION = 'A';
+    private static final char DELETION = 'D';
+    private static final char MODIFICATION = 'M';
+    private static final char RENAMING = 'R';
+    private static final char COPYING = 'C';
+    private static final String DELETED_OBJECT_ID = "0000000";
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+    private GitOutput() {
+    }
+
+    /// Entry format:
+    /// :<base_mode> <head_mode> <base_object_id> <head_object_id> <status>NUL<base_filename>NUL[<head_filename>NUL]
+    /// The head filename is present only if the status is R<similarity_index> or C<similarity_index>
+    static List<GitDiffEntry> diffEntries(final byte[] output) {
+        final var entries = new ArrayList<GitDiffEntry>();
+        final var cursor = new Cursor(output);
+        while (cursor.hasNext()) {
+            final var entry = RawEntry.read(cursor);
+            if (entry == null) {
+                continue;
+            }
+            switch (entry.status) {
+                case ADDITION -> entries.add(GitDiffEntry.addition(entry.headObjectId, entry.filename));
+                case DELETION -> entries.add(GitDiffEntry.deletion(entry.baseObjectId, entry.filename));
+                case MODIFICATION -> entries.add(GitDiffEntry.modification(entry.baseObjectId, entry.headObjectId, entry.filename));
+                case RENAMING -> entries.add(GitDiffEntry.renaming(
+                        entry.baseObjectId, entry.filename,
+                        entry.headObjectId, entry.headFilename,
+                        entry.similarityIndex
+                ));
+                default -> {
+                }
+            }
+        }
+        return entries;
+    }
+
+    /// Same entry format as of {@link #diffEntries(byte[])}, preceded by the empty commit header
+    static List<GitFile> showEntries(final byte[] output) {
+        final var files = new ArrayList<GitFile>();
+        final var cursor = new Cursor(output);
+        while (cursor.hasNext()) {
+            final var entry = RawEntry.read(cursor);
+            if (entry == null || entry.headObjectId.startsWith(DELETED_OBJECT_ID)) {
+                continue;
+            }
+            files.add(GitFile.of(entry.headObjectId, entry.headFilename != null ? entry.headFilename : entry.filename));
+        }
+        return files;
+    }
+
+    /// Entry format:
+    /// <file_mode> <file_type> <object_id>TAB<filename>NUL
+    static List<GitFile> lsTreeEntries(final byte[] output) {
+        final var files = new ArrayList<GitFile>();
+        final var cursor = new Cursor(output);
+        while (cursor.hasNext()) {
+            cursor.skipPast(SPACE);
+            cursor.skipPast(SPACE);
+            final var objectId = cursor.ascii(TAB);
+            final var filename = cursor.utf8(NUL);
+            files.add(GitFile.of(objectId, filename));
+        }
+        return files;
+    }
+
+    /**
+     * Takes the lines as is, including their terminators, that can be {@code \n}, {@code \r\n} or {@code \r}
+     *
+     * @param fromLine 1-based number of the first line
+     * @param toLine   1-based number of the last line, inclusive
+     */
+    static String lines(final byte[] content, final int fromLine, final int toLine) {
+        var line = 1;
+        var start = fromLine <= 1 ? 0 : -1;
+        var position = 0;
+        while (position < content.length && line <= toLine) {
+            final var b = content[position++];
+            if (b != LF && b != CR) {
+                continue;
+            }
+            if (b == CR && position < content.length && content[position] == LF) {
+                ++position;
+            }
+            if (++line == fromLine) {
+                start = position;
+            }
+        }
+        if (start < 0 || start >= position) {
+            return "";
+        }
+        return new String(content, start, position - start, UTF_8);
+    }
+
+    private static final class RawEntry {
+        String baseObjectId;
+        String headObjectId;
+        char status;
+        int similarityIndex;
+        String filename;
+        @Nullable
+        String headFilename;
+
+        /// @return null for the entries of combined diffs
+        @Nullable
+        static RawEntry read(final Cursor cursor) {
+            var parentCount = 0;
+            while (cursor.peek() == COLON) {
+                cursor.skip();
+                ++parentCount;
+            }
+            if (parentCount != 1) {
+                /// Combined diff entry: modes and object ids of all the parents, then a single filename
+                cursor.skipPast(NUL);
+                cursor.skipPast(NUL);
+                return null;
+            }
+            final var entry = new RawEntry();
+            cursor.skipPast(SPACE);
+            cursor.skipPast(SPACE);
+            entry.baseObjectId = cursor.ascii(SPACE);
+            entry.headObjectId = cursor.ascii(SPACE);
+            final var status = cursor.ascii(NUL);
+            entry.status = status.isEmpty() ? 0 : status.charAt(0);
+            entry.filename = cursor.utf8(NUL);
+            if (entry.status == RENAMING || entry.status == COPYING) {
+                entry.similarityIndex = similarityIndex(status);
+                entry.headFilename = cursor.utf8(NUL);
+            }
+            return entry;
+        }
+
+        private static int similarityIndex(final String status) {
+            try {
+                return Integer.parseInt(status, 1, status.length(), 10);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    private static final class Cursor {
+        private final byte[] bytes;
+        private int position;
+
+        Cursor(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        boolean hasNext() {
+            while (position < bytes.length && (bytes[position] == NUL || bytes[position] == LF)) {
+                ++position;
+            }
+            return position < bytes.length;
+        }
+
+        int peek() {
+            return position < bytes.length ? bytes[position] : -1;
+        }
+
+        void skip() {
+            ++position;
+        }
+
+        void skipPast(final byte delimiter) {
+            position = Math.min(end(delimiter) + 1, bytes.length);
+        }
+
+        String ascii(final byte delimiter) {
+            return string(delimiter, US_ASCII);
+        }
+
+        String utf8(final byte delimiter) {
+            return string(delimiter, UTF_8);
+        }
+
+        private String string(final byte delimiter, final Charset charset) {
+            final var end = end(delimiter);
+            final var string = STRINGS.intern(new String(bytes, position, end - position, charset));
+            position = Math.min(end + 1, bytes.length);
+            return string;
+        }
+
+        private int end(final byte delimiter) {
+            var end = position;
+            while (end < bytes.length && bytes[end] != delimiter) {
+                ++end;
+            }
+            return end;
+        }
+    }
+}
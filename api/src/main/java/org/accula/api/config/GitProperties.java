@@ -0,0 +1,22 @@
+package org.accula.api.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * @author Anton Lamtev
+ */
+@ConfigurationProperties("accula.git")
+@Data
+public final class GitProperties {
+    private Timeouts timeouts;
+
+    @Data
+    public static final class Timeouts {
+        private Duration clone;
+        private Duration fetch;
+        private Duration read;
+    }
+}
@@ -1,17 +1,24 @@
 package org.accula.api.config;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import org.accula.api.code.CodeLoader;
 import org.accula.api.code.GitCodeLoader;
+import org.accula.api.code.git.BlobCache;
 import org.accula.api.code.git.Git;
 import org.accula.api.db.model.User;
 import org.accula.api.db.repo.CurrentUserRepo;
 import org.accula.api.github.api.GithubClient;
+import org.accula.api.token.TokenProvider;
+import org.accula.api.token.corpus.TokenCorpus;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringBootConfiguration;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.reactive.config.WebFluxConfigurer;
 import org.springframework.web.reactive.function.client.WebClient;
 
@@ -27,9 +34,10 @@ import java.util.concurrent.TimeUnit;
  */
 @SpringBootConfiguration
 @RequiredArgsConstructor
-@EnableConfigurationProperties(WebhookProperties.class)
+@EnableConfigurationProperties({WebhookProperties.class, GitProperties.class})
 public class WebConfig implements WebFluxConfigurer {
     private final CurrentUserRepo currentUserRepo;
+    private final GitProperties gitProperties;
 
     @Bean
     public WebClient webClient() {
@@ -48,7 +56,9 @@ public class WebConfig implements WebFluxConfigurer {
 
     @SneakyThrows
     @Bean
-    public Git git(@Value("${accula.reposPath}") final String reposPath) {
+    public Git git(@Value("${accula.reposPath}") final String reposPath,
+                   @Value("${accula.cloneMode}") final Git.CloneMode cloneMode,
+                   final BlobCache blobCache) {
         final var reposDirectory = Path.of(reposPath);
         if (!Files.exists(reposDirectory)) {
             Files.createDirectory(reposDirectory);
@@ -60,11 +70,50 @@ public class WebConfig implements WebFluxConfigurer {
                 60L, TimeUnit.SECONDS,
                 new LinkedBlockingQueue<>(availableProcessors * 50)
         );
-        return new Git(reposDirectory, executor);
+        final var timeouts = gitProperties.getTimeouts();
+        return new Git(
+                reposDirectory,
+                executor,
+                blobCache,
+                cloneMode,
+                new Git.Timeouts(timeouts.getClone(), timeouts.getFetch(), timeouts.getRead())
+        );
+    }
+
+    @Bean
+    public BlobCache blobCache(@Value("${accula.blobCacheSize}") final DataSize blobCacheSize) {
+        return new BlobCache(blobCacheSize.toBytes());
+    }
+
+    @Bean
+    public MeterBinder blobCacheMetrics(final BlobCache blobCache) {
+        return registry -> {
+            FunctionCounter.builder("git.blob.cache.requests", blobCache, cache -> cache.stats().hitCount())
+                    .tag("result", "hit")
+                    .register(registry);
+            FunctionCounter.builder("git.blob.cache.requests", blobCache, cache -> cache.stats().missCount())
+                    .tag("result", "miss")
+                    .register(registry);
+            FunctionCounter.builder("git.blob.cache.evictions", blobCache, cache -> cache.stats().evictionCount())
+                    .register(registry);
+            Gauge.builder("git.blob.cache.size", blobCache, BlobCache::size)
+                    .register(registry);
+            Gauge.builder("git.blob.cache.bytes", blobCache, BlobCache::bytes)
+                    .baseUnit("bytes")
+                    .register(registry);
+        };
     }
 
     @Bean
     public CodeLoader codeLoader(final Git git) {
         return new GitCodeLoader(git);
     }
+
+    @SneakyThrows
+    @Bean
+    public TokenCorpus tokenCorpus(@Value("${accula.tokenCorpusPath}") final String tokenCorpusPath) {
+        final var tokenCorpusFile = Path.of(tokenCorpusPath).toAbsolutePath();
+        Files.createDirectories(tokenCorpusFile.getParent());
+        return TokenCorpus.open(tokenCorpusFile, TokenProvider.of(TokenProvider.Language.JAVA).version());
+    }
 }
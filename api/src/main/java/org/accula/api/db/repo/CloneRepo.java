@@ -17,9 +17,21 @@ public interface CloneRepo {
 
     Flux<Clone> insert(Collection<Clone> clones);
 
+    /**
+     * Deletes the obsolete clones and inserts the new ones in one transaction
+     *
+     * @return the inserted clones
+     */
+    Flux<Clone> applyDelta(Collection<Long> obsoleteIds, Collection<Clone> newClones);
+
     Mono<Clone> findById(Long id);
 
     Flux<Clone> findByTargetCommitSnapshotSha(String sha);
 
+    /**
+     * @return the clones of all the commits of the pull, i.e. of its former heads too
+     */
+    Flux<Clone> findByTargetPullId(Long pullId);
+
     Mono<Void> deleteByPullNumber(final long projectId, final int pullNumber);
 }
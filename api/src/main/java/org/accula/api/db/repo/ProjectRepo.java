@@ -23,6 +23,8 @@ public interface ProjectRepo {
 
     Flux<Project> getTop(int count);
 
+    Flux<Long> ids();
+
     Mono<Boolean> delete(Long id, Long creatorId);
 
     Mono<Boolean> hasAdmin(Long projectId, Long userId);
@@ -109,6 +109,18 @@ public final class ProjectRepoImpl implements ProjectRepo, ConnectionProvidedRep
                 .flatMapMany(result -> ConnectionProvidedRepo.convertMany(result, this::convert)));
     }
 
+    @Override
+    public Flux<Long> ids() {
+        return manyWithConnection(connection -> Mono
+                .from(connection
+                        .createStatement("""
+                                SELECT id
+                                FROM project
+                                """)
+                        .execute())
+                .flatMapMany(result -> ConnectionProvidedRepo.columnFlux(result, "id", Long.class)));
+    }
+
     @Override
     public Mono<Boolean> delete(final Long id, final Long creatorId) {
         return withConnection(connection -> Mono
@@ -1,6 +1,7 @@
 package org.accula.api.db.repo;
 
 import org.accula.api.db.model.Pull;
+import org.accula.api.db.model.Snapshot;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -32,4 +33,11 @@ public interface PullRepo {
     Flux<Pull> findByProjectId(Long projectId);
 
     Flux<Integer> numbersByIds(Collection<Long> ids);
+
+    void addOnHeadUpdate(OnHeadUpdate onHeadUpdate);
+
+    @FunctionalInterface
+    interface OnHeadUpdate {
+        void onHeadUpdate(Pull pull, Snapshot previousHead);
+    }
 }
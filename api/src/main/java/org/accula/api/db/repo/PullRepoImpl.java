@@ -7,12 +7,20 @@ import io.r2dbc.spi.Row;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.accula.api.db.model.Pull;
+import org.accula.api.db.model.Snapshot;
 import org.intellij.lang.annotations.Language;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
 
 /**
  * @author Anton Lamtev
@@ -21,57 +29,108 @@ import java.util.Collection;
 @RequiredArgsConstructor
 public final class PullRepoImpl implements PullRepo, ConnectionProvidedRepo {
     private static final String EMPTY_CLAUSE = "";
+    private static final String DO_NOTHING_ON_CONFLICT = """
+            ON CONFLICT (id) DO NOTHING
+            """;
+    private static final String UPDATE_ON_CONFLICT = """
+            ON CONFLICT (id) DO UPDATE
+               SET title = excluded.title,
+                   open = excluded.open,
+                   updated_at = excluded.updated_at,
+                   head_snapshot_sha = excluded.head_snapshot_sha,
+                   base_snapshot_sha = excluded.base_snapshot_sha
+            """;
+    private final Set<OnHeadUpdate> onHeadUpdates = ConcurrentHashMap.newKeySet();
     @Getter
     private final ConnectionProvider connectionProvider;
 
+    /**
+     * Previous heads are read and updated in one transaction, so concurrent upserts of the same pull
+     * report each superseded head exactly once. The pulls missing yet are inserted first,
+     * so the rows of all the pulls exist and are locked before their heads are read.
+     * Pulls are written in the id order, so concurrent upserts lock the same rows in the same order.
+     * The head repo and branch of a pull never change, so the previous head differs from the new one in sha only.
+     */
     @Override
     public Flux<Pull> upsert(final Collection<Pull> pulls) {
         if (pulls.isEmpty()) {
             return Flux.empty();
         }
+        if (onHeadUpdates.isEmpty()) {
+            return manyWithConnection(connection -> insert(connection, pulls, UPDATE_ON_CONFLICT).thenMany(Flux.fromIterable(pulls)));
+        }
 
-        return manyWithConnection(connection -> {
-            final var statement = BatchStatement.of(connection, """
-                    INSERT INTO pull (id,
-                                      number,
-                                      title,
-                                      open,
-                                      created_at,
-                                      updated_at,
-                                      head_snapshot_sha,
-                                      head_snapshot_repo_id,
-                                      base_snapshot_sha,
-                                      base_snapshot_repo_id,
-                                      project_id,
-                                      author_github_id)
-                    VALUES ($collection)
-                    ON CONFLICT (id) DO UPDATE
-                       SET title = excluded.title,
-                           open = excluded.open,
-                           updated_at = excluded.updated_at,
-                           head_snapshot_sha = excluded.head_snapshot_sha,
-                           base_snapshot_sha = excluded.base_snapshot_sha
-                    """);
-            statement.bind(pulls, pull -> new Object[]{
-                    pull.getId(),
-                    pull.getNumber(),
-                    pull.getTitle(),
-                    pull.isOpen(),
-                    pull.getCreatedAt(),
-                    pull.getUpdatedAt(),
-                    pull.getHead().getSha(),
-                    pull.getHead().getRepo().getId(),
-                    pull.getBase().getSha(),
-                    pull.getBase().getRepo().getId(),
-                    pull.getProjectId(),
-                    pull.getAuthor().getId()
-            });
+        final var sortedPulls = pulls.stream().sorted(comparing(Pull::getId)).collect(toList());
+        return transactional(connection -> insert(connection, sortedPulls, DO_NOTHING_ON_CONFLICT)
+                .thenMany(lockHeadShas(connection, sortedPulls.stream().map(Pull::getId).toArray(Long[]::new)))
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .flatMap(previousHeadShas -> insert(connection, sortedPulls, UPDATE_ON_CONFLICT).thenReturn(previousHeadShas)))
+                .flatMapMany(previousHeadShas -> Flux.fromIterable(pulls)
+                        .doOnNext(pull -> {
+                            final var previousHeadSha = previousHeadShas.get(pull.getId());
+                            if (previousHeadSha != null && !previousHeadSha.equals(pull.getHead().getSha())) {
+                                final var previousHead = Snapshot.builder()
+                                        .sha(previousHeadSha)
+                                        .branch(pull.getHead().getBranch())
+                                        .pullId(pull.getHead().getPullId())
+                                        .repo(pull.getHead().getRepo())
+                                        .build();
+                                onHeadUpdates.forEach(onHeadUpdate -> onHeadUpdate.onHeadUpdate(pull, previousHead));
+                            }
+                        }));
+    }
 
-            return statement
-                    .execute()
-                    .flatMap(PostgresqlResult::getRowsUpdated)
-                    .thenMany(Flux.fromIterable(pulls));
+    private static Mono<Void> insert(final Connection connection, final Collection<Pull> pulls, final String onConflictClause) {
+        final var statement = BatchStatement.of(connection, """
+                INSERT INTO pull (id,
+                                  number,
+                                  title,
+                                  open,
+                                  created_at,
+                                  updated_at,
+                                  head_snapshot_sha,
+                                  head_snapshot_repo_id,
+                                  base_snapshot_sha,
+                                  base_snapshot_repo_id,
+                                  project_id,
+                                  author_github_id)
+                VALUES ($collection)
+                """ + onConflictClause);
+        statement.bind(pulls, pull -> new Object[]{
+                pull.getId(),
+                pull.getNumber(),
+                pull.getTitle(),
+                pull.isOpen(),
+                pull.getCreatedAt(),
+                pull.getUpdatedAt(),
+                pull.getHead().getSha(),
+                pull.getHead().getRepo().getId(),
+                pull.getBase().getSha(),
+                pull.getBase().getRepo().getId(),
+                pull.getProjectId(),
+                pull.getAuthor().getId()
         });
+
+        return statement
+                .execute()
+                .flatMap(PostgresqlResult::getRowsUpdated)
+                .then();
+    }
+
+    private static Flux<Map.Entry<Long, String>> lockHeadShas(final Connection connection, final Long[] ids) {
+        return ((PostgresqlStatement) connection
+                .createStatement("""
+                        SELECT id, head_snapshot_sha
+                        FROM pull
+                        WHERE id = ANY($1)
+                        ORDER BY id
+                        FOR UPDATE
+                        """))
+                .bind("$1", ids)
+                .execute()
+                .flatMap(result -> result.map((row, metadata) -> Map.entry(
+                        Objects.requireNonNull(row.get("id", Long.class)),
+                        Objects.requireNonNull(row.get("head_snapshot_sha", String.class)))));
     }
 
     @Override
@@ -152,6 +211,11 @@ public final class PullRepoImpl implements PullRepo, ConnectionProvidedRepo {
         });
     }
 
+    @Override
+    public void addOnHeadUpdate(final OnHeadUpdate onHeadUpdate) {
+        onHeadUpdates.add(onHeadUpdate);
+    }
+
     private static PostgresqlStatement selectByIdStatement(final Connection connection) {
         return selectStatement(connection, """
                 JOIN unnest($1) WITH ORDINALITY AS arr(id, ord)
@@ -68,11 +68,9 @@ public final class ClonesHandler {
                     final var projectId = Long.parseLong(request.pathVariable(PROJECT_ID));
                     final var pullNumber = Integer.parseInt(request.pathVariable(PULL_NUMBER));
 
-                    final var clones = doIfCurrentUserHasAdminPermissionInProject(projectId, cloneRepo
-                            .deleteByPullNumber(projectId, pullNumber)
-                            .thenMany(pullRepo
-                                    .findByNumber(projectId, pullNumber)
-                                    .flatMapMany(cloneDetectionService::detectClones)))
+                    final var clones = doIfCurrentUserHasAdminPermissionInProject(projectId, pullRepo
+                            .findByNumber(projectId, pullNumber)
+                            .flatMapMany(cloneDetectionService::refreshClones))
                             .cache();
                     return toResponse(clones, projectId, pullNumber)
                             .switchIfEmpty(ServerResponse.status(HttpStatus.FORBIDDEN).build());
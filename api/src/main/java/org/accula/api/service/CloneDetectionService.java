@@ -5,20 +5,34 @@ import org.accula.api.clone.CloneDetector;
 import org.accula.api.clone.CloneDetectorImpl;
 import org.accula.api.clone.CodeSnippet;
 import org.accula.api.code.CodeLoader;
+import org.accula.api.code.DiffEntry;
+import org.accula.api.code.FileEntity;
 import org.accula.api.code.FileFilter;
 import org.accula.api.db.model.Clone;
 import org.accula.api.db.model.Pull;
+import org.accula.api.db.model.Snapshot;
 import org.accula.api.db.repo.CloneRepo;
 import org.accula.api.db.repo.ProjectRepo;
 import org.accula.api.db.repo.PullRepo;
+import org.accula.api.token.corpus.TokenCorpus;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import org.springframework.lang.Nullable;
 import reactor.function.TupleUtils;
 
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
 
 /**
  * @author Anton Lamtev
@@ -26,47 +40,254 @@ import java.util.concurrent.ConcurrentHashMap;
 @Slf4j
 @Service
 public final class CloneDetectionService {
+    private static final int WARM_UP_PROJECT_CONCURRENCY = 4;
+    private static final int WARM_UP_PULL_CONCURRENCY = 16;
+
     private final Map<Long, CloneDetector.Config> cloneDetectorConfigs = new ConcurrentHashMap<>();
     private final Map<Long, CloneDetector> cloneDetectors = new ConcurrentHashMap<>();
+    private final Map<Long, ProjectWarmUp> projectWarmUps = new ConcurrentHashMap<>();
+    private final Map<Long, Snapshot> supersededHeads = new ConcurrentHashMap<>();
     private final ProjectRepo projectRepo;
     private final PullRepo pullRepo;
     private final CloneRepo cloneRepo;
     private final CodeLoader loader;
+    private final TokenCorpus tokenCorpus;
+    private volatile boolean warmUpComplete;
 
     public CloneDetectionService(final ProjectRepo projectRepo,
                                  final PullRepo pullRepo,
                                  final CloneRepo cloneRepo,
-                                 final CodeLoader loader) {
+                                 final CodeLoader loader,
+                                 final TokenCorpus tokenCorpus) {
         this.projectRepo = projectRepo;
         this.projectRepo.addOnConfUpdate(this::evictConfigForProject);
         this.pullRepo = pullRepo;
+        this.pullRepo.addOnHeadUpdate(this::rememberSupersededHead);
         this.cloneRepo = cloneRepo;
         this.loader = loader;
+        this.tokenCorpus = tokenCorpus;
     }
 
+    /**
+     * Detects and stores the clones of the pull head.
+     * Once the pull head has been superseded, the clones of the files unchanged since the superseded head are carried over,
+     * and only the changed files are looked for clones.
+     * A project that has not been warmed up yet is warmed up first, so cold projects are only slower.
+     * The superseded head is removed from the clone index only once the files of the new head have been linked,
+     * so the blobs the heads share stay indexed.
+     */
     public Flux<Clone> detectClones(final Pull pull) {
-        final var targetFiles = loader.loadFiles(pull.getHead(), FileFilter.SRC_JAVA);
-
-        final var clones = cloneDetector(pull.getProjectId())
-                .findClones(pull.getHead(), targetFiles)
-                .distinct()
-                .map(TupleUtils.function(this::convert));
+        final var supersededHead = supersededHeads.remove(pull.getId());
+        final var clones = supersededHead != null ? detectClonesSince(supersededHead, pull) : detectAllClones(pull);
 
-        return clones
+        return warmUpProject(pull.getProjectId())
+                .thenMany(clones)
                 .collectList()
+                .transform(cloneList -> removingSupersededHead(cloneList, supersededHead, pull))
                 .doOnNext(cloneList -> log.info("{} clones have been detected", cloneList.size()))
                 .flatMapMany(cloneRepo::insert);
     }
 
-    public Mono<Void> fillSuffixTree() {
+    /**
+     * Detects the clones of the pull head again, only the difference with the stored clones of all the pull commits is stored,
+     * so the clones detected again keep their ids and suppression, and the clones of the former heads are deleted.
+     * The superseded head is not carried over from anymore, since its clones are deleted too
+     *
+     * @return all the clones of the pull head
+     */
+    public Flux<Clone> refreshClones(final Pull pull) {
+        final var supersededHead = supersededHeads.remove(pull.getId());
+        final var storedClones = cloneRepo
+                .findByTargetPullId(pull.getId())
+                .collectList();
+
+        return warmUpProject(pull.getProjectId())
+                .thenMany(detectAllClones(pull))
+                .collectList()
+                .transform(cloneList -> removingSupersededHead(cloneList, supersededHead, pull))
+                .zipWith(storedClones)
+                .flatMapMany(TupleUtils.function((detected, stored) -> {
+                    final var detectedKeys = detected.stream().map(CloneDetectionService::key).collect(toSet());
+                    final var storedKeys = stored.stream().map(CloneDetectionService::key).collect(toSet());
+                    final var kept = stored.stream().filter(clone -> detectedKeys.contains(key(clone))).collect(toList());
+                    final var obsoleteIds = stored
+                            .stream()
+                            .filter(clone -> !detectedKeys.contains(key(clone)))
+                            .map(Clone::getId)
+                            .collect(toList());
+                    final var newClones = detected.stream().filter(clone -> !storedKeys.contains(key(clone))).collect(toList());
+                    log.info("{} clones have been detected: {} new, {} obsolete", detected.size(), newClones.size(), obsoleteIds.size());
+                    return Flux.concat(Flux.fromIterable(kept), cloneRepo.applyDelta(obsoleteIds, newClones));
+                }));
+    }
+
+    /**
+     * Warms up all the projects, at most {@link #WARM_UP_PROJECT_CONCURRENCY} at a time.
+     * The warm-up is complete once all the projects have been tried, even if some of them have failed:
+     * those are warmed up again on their next clone detection and are reported as {@link WarmUpProgress.State#FAILED}.
+     */
+    public Mono<Void> warmUp() {
         return projectRepo
-                .getTop(100)
-                .flatMap(project -> pullRepo.findByProjectId(project.getId()))
-                .groupBy(Pull::getProjectId)
-                .flatMap(projectPulls -> cloneDetector(Objects.requireNonNull(projectPulls.key()))
-                        .fill(projectPulls
-                                .flatMap(pull -> loader.loadFiles(pull.getHead(), FileFilter.SRC_JAVA))))
-                .then();
+                .ids()
+                .flatMap(this::warmUpProject, WARM_UP_PROJECT_CONCURRENCY)
+                .then()
+                .doOnSuccess(done -> {
+                    warmUpComplete = true;
+                    final var failedProjectCount = projectWarmUps
+                            .values()
+                            .stream()
+                            .filter(projectWarmUp -> projectWarmUp.state == WarmUpProgress.State.FAILED)
+                            .count();
+                    if (failedProjectCount == 0L) {
+                        log.info("Clone index warm-up has been completed");
+                    } else {
+                        log.warn("Clone index warm-up has been completed, {} projects have failed to warm up", failedProjectCount);
+                    }
+                })
+                .onErrorResume(e -> {
+                    log.error("Unable to warm up the clone index", e);
+                    return Mono.empty();
+                });
+    }
+
+    public boolean isWarmUpComplete() {
+        return warmUpComplete;
+    }
+
+    public Map<Long, WarmUpProgress> warmUpProgress() {
+        return projectWarmUps
+                .entrySet()
+                .stream()
+                .collect(toMap(Map.Entry::getKey, entry -> entry.getValue().progress()));
+    }
+
+    /// Pull heads stored by the token corpus are restored from it, only the other ones are loaded and tokenized
+    private Mono<Void> warmUpProject(final Long projectId) {
+        return projectWarmUps
+                .computeIfAbsent(projectId, id -> new ProjectWarmUp())
+                .start(projectWarmUp -> {
+                    final var cloneDetector = cloneDetector(projectId);
+                    return pullRepo
+                            .findByProjectId(projectId)
+                            .doOnNext(pull -> projectWarmUp.pullCount.incrementAndGet())
+                            .flatMap(pull -> cloneDetector
+                                    .restore(pull.getHead())
+                                    .flatMap(restored -> restored
+                                            ? Mono.<Void>empty()
+                                            : cloneDetector.fill(loader.loadFiles(pull.getHead(), FileFilter.SRC_JAVA)))
+                                    .doOnSuccess(done -> projectWarmUp.warmPullCount.incrementAndGet()), WARM_UP_PULL_CONCURRENCY)
+                            .then()
+                            .doOnSuccess(done -> projectWarmUp.state = WarmUpProgress.State.WARM)
+                            .onErrorResume(e -> {
+                                log.error("Unable to warm up project with id={}", projectId, e);
+                                projectWarmUp.state = WarmUpProgress.State.FAILED;
+                                return Mono.empty();
+                            });
+                });
+    }
+
+    private Flux<Clone> detectAllClones(final Pull pull) {
+        return findClones(pull, loader.loadFiles(pull.getHead(), FileFilter.SRC_JAVA), file -> true);
+    }
+
+    /**
+     * Only the files changed since the superseded head are loaded and looked for clones,
+     * the unchanged ones are carried over without content, so their tokens are read from the token corpus,
+     * and their clones are carried over from the superseded head as is, since their lines have not changed.
+     * A clone whose source is not a pull head anymore is stale, so the unchanged files with such clones are looked for clones again.
+     * All the files are loaded if the corpus does not store all the superseded head files.
+     */
+    private Flux<Clone> detectClonesSince(final Snapshot supersededHead, final Pull pull) {
+        final var head = pull.getHead();
+        final var pullHeads = pullRepo
+                .findByProjectId(pull.getProjectId())
+                .map(projectPull -> projectPull.getHead().getId())
+                .collect(toSet());
+        return cloneDetector(pull.getProjectId())
+                .storedFiles(supersededHead)
+                .flatMap(supersededHeadFiles -> Mono
+                        .zip(loader.loadDiff(supersededHead, head, FileFilter.SRC_JAVA).collectList(),
+                                cloneRepo.findByTargetCommitSnapshotSha(supersededHead.getSha()).collectList(),
+                                pullHeads)
+                        .map(TupleUtils.function((diff, supersededHeadClones, heads) -> {
+                            final var changedFiles = diff
+                                    .stream()
+                                    .map(entry -> entry.getHead().getName())
+                                    .filter(Objects::nonNull)
+                                    .collect(toSet());
+                            final var files = carryOver(supersededHeadFiles, diff, head);
+                            final var unchangedFiles = files
+                                    .stream()
+                                    .map(FileEntity::getName)
+                                    .filter(file -> !changedFiles.contains(file))
+                                    .collect(toSet());
+                            final var unchangedFileClones = supersededHeadClones
+                                    .stream()
+                                    .filter(clone -> unchangedFiles.contains(clone.getTargetFile()))
+                                    .collect(toList());
+                            final var staleFiles = unchangedFileClones
+                                    .stream()
+                                    .filter(clone -> !heads.contains(clone.getSourceSnapshot().getId()))
+                                    .map(Clone::getTargetFile)
+                                    .collect(toSet());
+                            final var carriedOverClones = unchangedFileClones
+                                    .stream()
+                                    .filter(clone -> !staleFiles.contains(clone.getTargetFile()))
+                                    .map(clone -> clone.toBuilder().id(-1L).targetSnapshot(head).build())
+                                    .collect(toList());
+                            final Predicate<String> targets = file -> changedFiles.contains(file) || staleFiles.contains(file);
+                            return Flux.concat(Flux.fromIterable(carriedOverClones), findClones(pull, Flux.fromIterable(files), targets));
+                        })))
+                .switchIfEmpty(Mono.fromSupplier(() -> detectAllClones(pull)))
+                .flatMapMany(Function.identity());
+    }
+
+    /// Superseded head is removed from the clone index once the clones have been detected, even if the detection has failed
+    private Mono<List<Clone>> removingSupersededHead(final Mono<List<Clone>> clones,
+                                                     @Nullable final Snapshot supersededHead,
+                                                     final Pull pull) {
+        if (supersededHead == null) {
+            return clones;
+        }
+        final var removeSupersededHead = Mono.defer(() -> cloneDetector(pull.getProjectId()).remove(supersededHead));
+        return clones
+                .onErrorResume(e -> removeSupersededHead.then(Mono.error(e)))
+                .flatMap(cloneList -> removeSupersededHead.thenReturn(cloneList));
+    }
+
+    private Flux<Clone> findClones(final Pull pull, final Flux<FileEntity<Snapshot>> files, final Predicate<String> targetFilter) {
+        return cloneDetector(pull.getProjectId())
+                .findClones(pull.getHead(), files, targetFilter)
+                .distinct()
+                .map(TupleUtils.function(this::convert));
+    }
+
+    private static List<FileEntity<Snapshot>> carryOver(final List<FileEntity<Snapshot>> supersededHeadFiles,
+                                                        final List<DiffEntry<Snapshot>> diff,
+                                                        final Snapshot head) {
+        final var files = new LinkedHashMap<String, FileEntity<Snapshot>>();
+        supersededHeadFiles.forEach(file -> files.put(file.getName(), new FileEntity<>(head, file.getName(), null, file.getId())));
+        diff.forEach(entry -> {
+            final var removed = entry.getBase().getName();
+            if (removed != null) {
+                files.remove(removed);
+            }
+        });
+        diff.forEach(entry -> {
+            final var added = entry.getHead();
+            if (added.getName() != null && FileFilter.SRC_JAVA.test(added.getName())) {
+                files.put(added.getName(), added);
+            }
+        });
+        return List.copyOf(files.values());
+    }
+
+    /// Clones are equal by their ids, so the stored and the detected ones are compared by their snippets
+    private static List<Object> key(final Clone clone) {
+        return List.of(
+                clone.getTargetSnapshot().getId(), clone.getTargetFile(), clone.getTargetFromLine(), clone.getTargetToLine(),
+                clone.getSourceSnapshot().getId(), clone.getSourceFile(), clone.getSourceFromLine(), clone.getSourceToLine()
+        );
     }
 
     private Clone convert(final CodeSnippet target, final CodeSnippet source) {
@@ -83,7 +304,7 @@ public final class CloneDetectionService {
     }
 
     private CloneDetector cloneDetector(final Long projectId) {
-        return cloneDetectors.computeIfAbsent(projectId, id -> new CloneDetectorImpl(cloneDetectorConfigProvider(id)));
+        return cloneDetectors.computeIfAbsent(projectId, id -> new CloneDetectorImpl(cloneDetectorConfigProvider(id), tokenCorpus));
     }
 
     private CloneDetector.ConfigProvider cloneDetectorConfigProvider(final Long projectId) {
@@ -100,4 +321,42 @@ public final class CloneDetectionService {
     private void evictConfigForProject(final Long projectId) {
         cloneDetectorConfigs.remove(projectId);
     }
+
+    /**
+     * The superseded head is remembered, so the next detection of the pull only loads the files changed since it,
+     * and it is removed from the clone index by that detection. A head superseded before being detected
+     * is removed right away, since no detection is going to link its files anymore.
+     */
+    private void rememberSupersededHead(final Pull pull, final Snapshot previousHead) {
+        final var formerlySupersededHead = supersededHeads.put(pull.getId(), previousHead);
+        final var cloneDetector = cloneDetectors.get(pull.getProjectId());
+        if (formerlySupersededHead != null && cloneDetector != null) {
+            cloneDetector
+                    .remove(formerlySupersededHead)
+                    .subscribe();
+        }
+    }
+
+    private static final class ProjectWarmUp {
+        final AtomicInteger pullCount = new AtomicInteger();
+        final AtomicInteger warmPullCount = new AtomicInteger();
+        volatile WarmUpProgress.State state = WarmUpProgress.State.IN_PROGRESS;
+        @Nullable
+        Mono<Void> completion;
+
+        /// The warm-up is performed once however many detections wait for it, and retried once it has failed
+        synchronized Mono<Void> start(final Function<ProjectWarmUp, Mono<Void>> warmUp) {
+            if (completion == null || state == WarmUpProgress.State.FAILED) {
+                state = WarmUpProgress.State.IN_PROGRESS;
+                pullCount.set(0);
+                warmPullCount.set(0);
+                completion = warmUp.apply(this).cache();
+            }
+            return completion;
+        }
+
+        WarmUpProgress progress() {
+            return new WarmUpProgress(state, pullCount.get(), warmPullCount.get());
+        }
+    }
 }
@@ -0,0 +1,21 @@
+package org.accula.api.service;
+
+import lombok.Value;
+
+/**
+ * Progress of filling the clone index of a project with its pulls
+ *
+ * @author Anton Lamtev
+ */
+@Value
+public class WarmUpProgress {
+    State state;
+    int pullCount;
+    int warmPullCount;
+
+    public enum State {
+        IN_PROGRESS,
+        WARM,
+        FAILED,
+    }
+}
@@ -1,6 +1,7 @@
 package org.accula.api.startup;
 
 import org.accula.api.service.CloneDetectionService;
+import org.accula.api.util.ReactorSchedulers;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextRefreshedEvent;
@@ -20,11 +21,15 @@ public final class ApplicationStartupHookInstaller implements ApplicationListene
         if (!contextRefreshed.compareAndSet(false, true)) {
             return;
         }
-        fillSuffixTree(event.getApplicationContext());
+        warmUpCloneIndex(event.getApplicationContext());
     }
 
-    private static void fillSuffixTree(final ApplicationContext ctx) {
+    /// Does not hold the context refresh, see {@link CloneIndexHealthIndicator} for the warm-up progress
+    private static void warmUpCloneIndex(final ApplicationContext ctx) {
         final var cloneDetectionService = ctx.getBean(CloneDetectionService.class);
-        cloneDetectionService.fillSuffixTree().block();
+        cloneDetectionService
+                .warmUp()
+                .subscribeOn(ReactorSchedulers.boundedElastic("CloneIndexWarmUp"))
+                .subscribe();
     }
 }
@@ -0,0 +1,49 @@
+package org.accula.api.startup;
+
+import lombok.RequiredArgsConstructor;
+import org.accula.api.service.CloneDetectionService;
+import org.accula.api.service.WarmUpProgress;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Reports the clone index warm-up progress. The instance is not ready until all the projects are warmed up,
+ * though it serves requests meanwhile: detections of cold projects warm them up first.
+ * <p>
+ * The warm-up is reported with its own {@link #WARMING_UP} status, which is ordered below {@link Status#UP}
+ * for the default health group and above it for the readiness group (see application.yml),
+ * so the warm-up fails the readiness probe only.
+ * <p>
+ * Projects that have failed to warm up do not hold the readiness, since they are warmed up again
+ * on their next clone detection. They are listed in the details instead.
+ *
+ * @author Anton Lamtev
+ */
+@Component
+@RequiredArgsConstructor
+public final class CloneIndexHealthIndicator implements HealthIndicator {
+    static final Status WARMING_UP = new Status("WARMING_UP", "Clone index is being warmed up");
+
+    private final CloneDetectionService cloneDetectionService;
+
+    @Override
+    public Health health() {
+        final var progress = cloneDetectionService.warmUpProgress();
+        final var health = cloneDetectionService.isWarmUpComplete() ? Health.up() : Health.status(WARMING_UP);
+        return health
+                .withDetail("projects", progress)
+                .withDetail("failedProjects", progress
+                        .entrySet()
+                        .stream()
+                        .filter(project -> project.getValue().getState() == WarmUpProgress.State.FAILED)
+                        .map(Map.Entry::getKey)
+                        .collect(toList()))
+                .build();
+    }
+}
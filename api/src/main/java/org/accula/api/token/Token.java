@@ -40,6 +40,22 @@ public class Token<Ref> implements Comparable<Token<Ref>> {
                 .build();
     }
 
+    public static <Ref> Token<Ref> of(final Ref ref,
+                                      final String string,
+                                      final String methodName,
+                                      final String filename,
+                                      final int fromLine,
+                                      final int toLine) {
+        return Token.<Ref>builder()
+                .ref(ref)
+                .string(string)
+                .methodName(methodName)
+                .filename(filename)
+                .fromLine(fromLine)
+                .toLine(toLine)
+                .build();
+    }
+
     @Override
     public int compareTo(final Token otherToken) {
         return string.compareTo(otherToken.string);
@@ -17,7 +17,24 @@ public interface TokenProvider<Ref> {
         };
     }
 
-    Flux<List<Token<Ref>>> tokensByMethods(Flux<FileEntity<Ref>> files);
+    /**
+     * Methods of each file are emitted one after another, and the files are in the order they are provided.
+     * The files may be tokenized in parallel.
+     */
+    Flux<TokenStream<Ref>> tokenStreams(Flux<FileEntity<Ref>> files);
+
+    /**
+     * Same as {@link #tokenStreams(Flux)} but with a token object per token
+     */
+    default Flux<List<Token<Ref>>> tokensByMethods(final Flux<FileEntity<Ref>> files) {
+        return tokenStreams(files).map(TokenStream::tokens);
+    }
+
+    /**
+     * Version of the produced token streams. It MUST be changed whenever the tokens produced for the same file change,
+     * so the persisted tokens of the former versions are not used anymore.
+     */
+    int version();
 
     enum Language {
         JAVA,
@@ -0,0 +1,142 @@
+package org.accula.api.token;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tokens of a method stored by columns: type ids, from lines and to lines,
+ * with the ref, the method name and the filename stored once for all the tokens.
+ *
+ * @author Anton Lamtev
+ */
+@EqualsAndHashCode
+public final class TokenStream<Ref> {
+    @Getter
+    private final Ref ref;
+    @Getter
+    private final String methodName;
+    @Getter
+    private final String filename;
+    private final int[] types;
+    private final int[] fromLines;
+    private final int[] toLines;
+
+    private TokenStream(final Ref ref,
+                        final String methodName,
+                        final String filename,
+                        final int[] types,
+                        final int[] fromLines,
+                        final int[] toLines) {
+        this.ref = ref;
+        this.methodName = methodName;
+        this.filename = filename;
+        this.types = types;
+        this.fromLines = fromLines;
+        this.toLines = toLines;
+    }
+
+    public static <Ref> Builder<Ref> builder(final Ref ref, final String methodName, final String filename) {
+        return new Builder<>(ref, methodName, filename);
+    }
+
+    /**
+     * @param tokens non-empty list of the tokens of a single method
+     */
+    public static <Ref> TokenStream<Ref> of(final List<Token<Ref>> tokens) {
+        final var first = tokens.get(0);
+        final var builder = TokenStream.builder(first.getRef(), first.getMethodName(), first.getFilename());
+        tokens.forEach(token -> builder.add(token.getString(), token.getFromLine(), token.getToLine()));
+        return builder.build();
+    }
+
+    /**
+     * @return same tokens of the file with another name, e.g. of another file with the same content
+     */
+    public TokenStream<Ref> withFilename(final String filename) {
+        return new TokenStream<>(ref, methodName, filename, types, fromLines, toLines);
+    }
+
+    public int size() {
+        return types.length;
+    }
+
+    public boolean isEmpty() {
+        return types.length == 0;
+    }
+
+    public String type(final int index) {
+        return TokenTypes.type(types[index]);
+    }
+
+    /**
+     * Type ids are process-wide, so the streams of different methods can be compared by them
+     *
+     * @return type ids of the tokens, the array is shared by the stream and MUST NOT be modified
+     */
+    public int[] typeIds() {
+        return types;
+    }
+
+    public int fromLine(final int index) {
+        return fromLines[index];
+    }
+
+    public int toLine(final int index) {
+        return toLines[index];
+    }
+
+    /**
+     * @return the tokens for the callers that need token objects, each call creates them anew
+     */
+    public List<Token<Ref>> tokens() {
+        final var tokens = new ArrayList<Token<Ref>>(types.length);
+        for (int i = 0; i < types.length; ++i) {
+            tokens.add(Token.of(ref, type(i), methodName, filename, fromLines[i], toLines[i]));
+        }
+        return tokens;
+    }
+
+    public static final class Builder<Ref> {
+        private final Ref ref;
+        private final String methodName;
+        private final String filename;
+        private int[] types = new int[16];
+        private int[] fromLines = new int[16];
+        private int[] toLines = new int[16];
+        private int size;
+
+        private Builder(final Ref ref, final String methodName, final String filename) {
+            this.ref = ref;
+            this.methodName = methodName;
+            this.filename = filename;
+        }
+
+        public Builder<Ref> add(final String type, final int fromLine, final int toLine) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                fromLines = Arrays.copyOf(fromLines, size * 2);
+                toLines = Arrays.copyOf(toLines, size * 2);
+            }
+            types[size] = TokenTypes.id(type);
+            fromLines[size] = fromLine;
+            toLines[size] = toLine;
+            ++size;
+            return this;
+        }
+
+        public TokenStream<Ref> build() {
+            return new TokenStream<>(
+                    ref,
+                    methodName,
+                    filename,
+                    Arrays.copyOf(types, size),
+                    Arrays.copyOf(fromLines, size),
+                    Arrays.copyOf(toLines, size)
+            );
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.accula.api.token;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide ids of the token types, so the token streams hold type ids instead of type strings
+ *
+ * @author Anton Lamtev
+ */
+final class TokenTypes {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] types = new String[256];
+
+    private TokenTypes() {
+    }
+
+    static int id(final String type) {
+        final var id = ids.get(type);
+        return id != null ? id : register(type);
+    }
+
+    static String type(final int id) {
+        return types[id];
+    }
+
+    private static synchronized int register(final String type) {
+        final var registered = ids.get(type);
+        if (registered != null) {
+            return registered;
+        }
+        final var id = ids.size();
+        if (id == types.length) {
+            types = Arrays.copyOf(types, id * 2);
+        }
+        types[id] = type;
+        /// Published by the map after the type has been stored
+        ids.put(type, id);
+        return id;
+    }
+}
@@ -0,0 +1,55 @@
+package org.accula.api.token.corpus;
+
+import org.accula.api.code.FileEntity;
+import org.accula.api.token.TokenProvider;
+import org.accula.api.token.TokenStream;
+import reactor.core.publisher.Flux;
+
+import java.util.function.Function;
+
+/**
+ * Token provider that reads the tokens of the files from the corpus by their blob ids,
+ * so only the blobs the corpus does not contain yet are tokenized. They are stored to the corpus once tokenized.
+ * Files without a blob id are always tokenized.
+ * The corpus MUST be opened with the version of the underlying token provider.
+ *
+ * @author Anton Lamtev
+ */
+public final class CachingTokenProvider<Ref> implements TokenProvider<Ref> {
+    private static final int CONCURRENCY = Runtime.getRuntime().availableProcessors();
+
+    private final TokenProvider<Ref> tokenProvider;
+    private final TokenCorpus tokenCorpus;
+
+    public CachingTokenProvider(final TokenProvider<Ref> tokenProvider, final TokenCorpus tokenCorpus) {
+        this.tokenProvider = tokenProvider;
+        this.tokenCorpus = tokenCorpus;
+    }
+
+    @Override
+    public Flux<TokenStream<Ref>> tokenStreams(final Flux<FileEntity<Ref>> files) {
+        return files.flatMapSequential(this::fileTokenStreams, CONCURRENCY);
+    }
+
+    @Override
+    public int version() {
+        return tokenProvider.version();
+    }
+
+    private Flux<TokenStream<Ref>> fileTokenStreams(final FileEntity<Ref> file) {
+        final var blob = file.getId();
+        if (blob == null) {
+            return tokenProvider.tokenStreams(Flux.just(file));
+        }
+        if (tokenCorpus.containsBlob(blob)) {
+            return Flux
+                    .fromIterable(tokenCorpus.methods(blob, file.getRef()))
+                    .map(method -> method.withFilename(file.getName()));
+        }
+        return tokenProvider
+                .tokenStreams(Flux.just(file))
+                .collectList()
+                .doOnNext(methods -> tokenCorpus.addBlob(blob, methods))
+                .flatMapIterable(Function.identity());
+    }
+}
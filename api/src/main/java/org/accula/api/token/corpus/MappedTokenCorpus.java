@@ -0,0 +1,377 @@
+package org.accula.api.token.corpus;
+
+import lombok.extern.slf4j.Slf4j;
+import org.accula.api.token.TokenStream;
+import org.accula.api.util.Sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only file of records, each one is framed as: payload length, type, payload, CRC32 of the type and the payload.
+ * Records are:
+ * <ul>
+ *     <li>string: UTF-8 bytes, strings get sequential ids in the order of their records</li>
+ *     <li>blob: blob string id, method count, and for each method: filename and method name string ids,
+ *     token count, token type string ids, token from lines and token to lines</li>
+ *     <li>snapshot: snapshot string id, file count, and for each file: name and blob string ids</li>
+ * </ul>
+ * The strings a record refers to are written before it within the same write, so a torn tail left by a crash
+ * is detected by the framing and truncated on open. Only the string table and the record offsets are kept on heap,
+ * tokens are read from the mapped file on demand.
+ * The file is mapped as a whole, so it does not grow beyond 2 GB, the corpus stops storing new records then.
+ *
+ * @author Anton Lamtev
+ */
+@Slf4j
+final class MappedTokenCorpus implements TokenCorpus {
+    private static final int MAGIC = 0x41544B43;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int RECORD_OVERHEAD = Integer.BYTES + 1 + Integer.BYTES;
+    private static final byte STRING = 1;
+    private static final byte BLOB = 2;
+    private static final byte SNAPSHOT = 3;
+
+    private final FileChannel channel;
+    private final Sync sync = new Sync();
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    /// Offsets of the blob record payloads by the blob string id
+    private final Map<Integer, Integer> blobOffsets = new HashMap<>();
+    private final Map<String, List<FileBlob>> snapshots = new HashMap<>();
+    private MappedByteBuffer mapped;
+    private int size;
+
+    private MappedTokenCorpus(final FileChannel channel) {
+        this.channel = channel;
+    }
+
+    static MappedTokenCorpus open(final Path file, final int tokenizerVersion) throws IOException {
+        final var channel = FileChannel.open(file, CREATE, READ, WRITE);
+        try {
+            final var corpus = new MappedTokenCorpus(channel);
+            corpus.load(tokenizerVersion);
+            return corpus;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean containsBlob(final String blob) {
+        return sync.reading(() -> blobOffset(blob) != null).get();
+    }
+
+    @Override
+    public <Ref> List<TokenStream<Ref>> methods(final String blob, final Ref ref) {
+        final var methods = sync.reading(() -> readMethods(blob, ref)).get();
+        if (methods.isPresent()) {
+            return methods.get();
+        }
+        return sync.writing(() -> {
+            remap();
+            return readMethods(blob, ref);
+        }).get().orElseThrow();
+    }
+
+    @Override
+    public void addBlob(final String blob, final List<? extends TokenStream<?>> methods) {
+        sync.writing(() -> {
+            if (blobOffset(blob) != null) {
+                return false;
+            }
+            final var newStrings = new LinkedHashMap<String, Integer>();
+            final var payload = new Payload();
+            payload.writeInt(stringId(blob, newStrings));
+            payload.writeInt(methods.size());
+            for (final var method : methods) {
+                final var tokenCount = method.size();
+                payload.writeInt(stringId(method.getFilename(), newStrings));
+                payload.writeInt(stringId(method.getMethodName(), newStrings));
+                payload.writeInt(tokenCount);
+                for (int token = 0; token < tokenCount; ++token) {
+                    payload.writeInt(stringId(method.type(token), newStrings));
+                }
+                for (int token = 0; token < tokenCount; ++token) {
+                    payload.writeInt(method.fromLine(token));
+                }
+                for (int token = 0; token < tokenCount; ++token) {
+                    payload.writeInt(method.toLine(token));
+                }
+            }
+            final var blobId = stringIds.getOrDefault(blob, newStrings.get(blob));
+            final var payloadOffset = append(newStrings, BLOB, payload);
+            if (payloadOffset != null) {
+                blobOffsets.put(blobId, payloadOffset);
+            }
+            return payloadOffset != null;
+        }).get();
+    }
+
+    @Override
+    public Optional<List<FileBlob>> files(final String snapshot) {
+        return sync.reading(() -> Optional.ofNullable(snapshots.get(snapshot))).get();
+    }
+
+    @Override
+    public void addSnapshot(final String snapshot, final List<FileBlob> files) {
+        sync.writing(() -> {
+            if (snapshots.containsKey(snapshot)) {
+                return false;
+            }
+            final var newStrings = new LinkedHashMap<String, Integer>();
+            final var payload = new Payload();
+            payload.writeInt(stringId(snapshot, newStrings));
+            payload.writeInt(files.size());
+            for (final var file : files) {
+                payload.writeInt(stringId(file.getName(), newStrings));
+                payload.writeInt(stringId(file.getBlob(), newStrings));
+            }
+            final var payloadOffset = append(newStrings, SNAPSHOT, payload);
+            if (payloadOffset == null) {
+                return false;
+            }
+            force();
+            snapshots.put(snapshot, List.copyOf(files));
+            return true;
+        }).get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync.writing(() -> {
+                try {
+                    channel.close();
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).get();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void load(final int tokenizerVersion) throws IOException {
+        final var header = ByteBuffer.allocate(HEADER_SIZE);
+        final var fileSize = channel.size();
+        if (fileSize < HEADER_SIZE || channel.read(header, 0L) != HEADER_SIZE
+            || header.getInt(0) != MAGIC
+            || header.getInt(Integer.BYTES) != FORMAT_VERSION
+            || header.getInt(2 * Integer.BYTES) != tokenizerVersion) {
+            if (fileSize > 0L) {
+                log.info("Token corpus has been written by another format or tokenizer version, clearing it");
+            }
+            channel.truncate(0L);
+            header.clear();
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(tokenizerVersion).flip();
+            channel.write(header, 0L);
+            channel.force(true);
+        }
+        size = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+        remapUnchecked();
+
+        int offset = HEADER_SIZE;
+        while (offset + RECORD_OVERHEAD <= size) {
+            final int length = mapped.getInt(offset);
+            if (length < 0 || (long) offset + RECORD_OVERHEAD + length > size) {
+                break;
+            }
+            final byte type = mapped.get(offset + Integer.BYTES);
+            final int payloadOffset = offset + Integer.BYTES + 1;
+            final var crc = new CRC32();
+            crc.update(mapped.duplicate().position(offset + Integer.BYTES).limit(payloadOffset + length));
+            if ((int) crc.getValue() != mapped.getInt(payloadOffset + length) || !loadRecord(type, payloadOffset, length)) {
+                break;
+            }
+            offset += RECORD_OVERHEAD + length;
+        }
+        if (offset < channel.size()) {
+            log.warn("Token corpus has a torn tail of {} bytes, truncating it", channel.size() - offset);
+            channel.truncate(offset);
+            size = offset;
+            remapUnchecked();
+        }
+    }
+
+    private boolean loadRecord(final byte type, final int offset, final int length) {
+        switch (type) {
+            case STRING -> {
+                final var bytes = new byte[length];
+                mapped.get(offset, bytes);
+                final var string = new String(bytes, StandardCharsets.UTF_8);
+                stringIds.put(string, strings.size());
+                strings.add(string);
+            }
+            case BLOB -> blobOffsets.put(mapped.getInt(offset), offset);
+            case SNAPSHOT -> {
+                final var fileCount = mapped.getInt(offset + Integer.BYTES);
+                final var files = new ArrayList<FileBlob>(fileCount);
+                for (int i = 0, file = offset + 2 * Integer.BYTES; i < fileCount; ++i, file += 2 * Integer.BYTES) {
+                    files.add(new FileBlob(strings.get(mapped.getInt(file)), strings.get(mapped.getInt(file + Integer.BYTES))));
+                }
+                snapshots.put(strings.get(mapped.getInt(offset)), List.copyOf(files));
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return tokens of the blob methods, an empty list if the blob is not stored,
+     * or empty if the blob record has been appended after the file was mapped
+     */
+    private <Ref> Optional<List<TokenStream<Ref>>> readMethods(final String blob, final Ref ref) {
+        final var blobOffset = blobOffset(blob);
+        if (blobOffset == null) {
+            return Optional.of(List.of());
+        }
+        if (blobOffset >= mapped.capacity()) {
+            return Optional.empty();
+        }
+        final int methodCount = mapped.getInt(blobOffset + Integer.BYTES);
+        final var methods = new ArrayList<TokenStream<Ref>>(methodCount);
+        int offset = blobOffset + 2 * Integer.BYTES;
+        for (int i = 0; i < methodCount; ++i) {
+            final var filename = strings.get(mapped.getInt(offset));
+            final var methodName = strings.get(mapped.getInt(offset + Integer.BYTES));
+            final int tokenCount = mapped.getInt(offset + 2 * Integer.BYTES);
+            offset += 3 * Integer.BYTES;
+            final int fromLines = offset + tokenCount * Integer.BYTES;
+            final int toLines = fromLines + tokenCount * Integer.BYTES;
+            final var tokens = TokenStream.builder(ref, methodName, filename);
+            for (int token = 0; token < tokenCount; ++token) {
+                final int index = token * Integer.BYTES;
+                tokens.add(
+                        strings.get(mapped.getInt(offset + index)),
+                        mapped.getInt(fromLines + index),
+                        mapped.getInt(toLines + index));
+            }
+            methods.add(tokens.build());
+            offset = toLines + tokenCount * Integer.BYTES;
+        }
+        return Optional.of(methods);
+    }
+
+    private Integer blobOffset(final String blob) {
+        final var blobId = stringIds.get(blob);
+        return blobId != null ? blobOffsets.get(blobId) : null;
+    }
+
+    private int stringId(final String string, final Map<String, Integer> newStrings) {
+        final var id = stringIds.get(string);
+        if (id != null) {
+            return id;
+        }
+        return newStrings.computeIfAbsent(string, s -> strings.size() + newStrings.size());
+    }
+
+    /**
+     * Appends the new strings and the record in a single write
+     *
+     * @return offset of the record payload or null if the corpus is full
+     */
+    private Integer append(final Map<String, Integer> newStrings, final byte type, final Payload payload) {
+        final var records = new Payload();
+        newStrings.keySet().forEach(string -> records.writeRecord(STRING, string.getBytes(StandardCharsets.UTF_8)));
+        final int payloadOffset = size + records.size() + Integer.BYTES + 1;
+        records.writeRecord(type, payload.toByteArray());
+        if ((long) size + records.size() > Integer.MAX_VALUE) {
+            log.warn("Token corpus is full, new tokens are not stored anymore");
+            return null;
+        }
+        try {
+            final var buffer = ByteBuffer.wrap(records.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, size + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size += records.size();
+        newStrings.forEach((string, id) -> {
+            stringIds.put(string, id);
+            strings.add(string);
+        });
+        return payloadOffset;
+    }
+
+    private void force() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void remap() {
+        try {
+            remapUnchecked();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void remapUnchecked() throws IOException {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+    }
+
+    /// Big-endian in-memory buffer, the same byte order the mapped file is read with
+    private static final class Payload {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        void writeInt(final int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void writeRecord(final byte type, final byte[] payload) {
+            final var crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            try {
+                out.writeInt(payload.length);
+                out.writeByte(type);
+                out.write(payload);
+                out.writeInt((int) crc.getValue());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.accula.api.token.corpus;
+
+import org.accula.api.token.TokenStream;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * @author Anton Lamtev
+ */
+final class NoTokenCorpus implements TokenCorpus {
+    static final NoTokenCorpus INSTANCE = new NoTokenCorpus();
+
+    private NoTokenCorpus() {
+    }
+
+    @Override
+    public boolean containsBlob(final String blob) {
+        return false;
+    }
+
+    @Override
+    public <Ref> List<TokenStream<Ref>> methods(final String blob, final Ref ref) {
+        return List.of();
+    }
+
+    @Override
+    public void addBlob(final String blob, final List<? extends TokenStream<?>> methods) {
+    }
+
+    @Override
+    public Optional<List<FileBlob>> files(final String snapshot) {
+        return Optional.empty();
+    }
+
+    @Override
+    public void addSnapshot(final String snapshot, final List<FileBlob> files) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,66 @@
+package org.accula.api.token.corpus;
+
+import lombok.Value;
+import org.accula.api.token.TokenStream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Persistent store of the method tokens of the blobs and of the blobs of the snapshots,
+ * so the snapshots can be indexed again without loading and tokenizing their files.
+ * The tokens of a blob and the files of a snapshot are immutable, so they are only added once.
+ *
+ * @author Anton Lamtev
+ */
+public interface TokenCorpus extends Closeable {
+    /**
+     * Opens the corpus stored in the file, the corpus is created if the file does not exist,
+     * and it is cleared if it has been written by another format or tokenizer version.
+     */
+    static TokenCorpus open(final Path file, final int tokenizerVersion) throws IOException {
+        return MappedTokenCorpus.open(file, tokenizerVersion);
+    }
+
+    /**
+     * @return the corpus that stores nothing
+     */
+    static TokenCorpus none() {
+        return NoTokenCorpus.INSTANCE;
+    }
+
+    boolean containsBlob(String blob);
+
+    /**
+     * @return tokens of each method of the blob with the given ref, or an empty list if the blob is not stored
+     */
+    <Ref> List<TokenStream<Ref>> methods(String blob, Ref ref);
+
+    /**
+     * Stores the blob method tokens unless the blob is already stored
+     */
+    void addBlob(String blob, List<? extends TokenStream<?>> methods);
+
+    /**
+     * @return files of the snapshot if it has been stored
+     */
+    Optional<List<FileBlob>> files(String snapshot);
+
+    /**
+     * Stores the snapshot files unless the snapshot is already stored.
+     * Blobs of the files are expected to be stored already.
+     */
+    void addSnapshot(String snapshot, List<FileBlob> files);
+
+    @Override
+    void close() throws IOException;
+
+    @Value
+    class FileBlob {
+        String name;
+        String blob;
+    }
+}
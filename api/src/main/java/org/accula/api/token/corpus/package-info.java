@@ -0,0 +1,4 @@
+@NonNullApi
+package org.accula.api.token.corpus;
+
+import org.springframework.lang.NonNullApi;
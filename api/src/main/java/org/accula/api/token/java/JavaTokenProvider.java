@@ -1,23 +1,23 @@
 package org.accula.api.token.java;
 
-import com.intellij.core.JavaCoreProjectEnvironment;
 import com.intellij.lang.java.JavaLanguage;
-import com.intellij.openapi.util.Disposer;
 import com.intellij.psi.PsiElement;
-import com.intellij.psi.PsiElementFinder;
-import com.intellij.psi.PsiFileFactory;
 import com.intellij.psi.PsiMethod;
 import org.accula.api.code.FileEntity;
-import org.accula.api.token.Token;
 import org.accula.api.token.TokenProvider;
-import org.accula.api.token.TraverseUtils;
-import org.accula.api.token.psi.java.JavaApplicationEnvironment;
+import org.accula.api.token.TokenStream;
+import org.accula.api.token.psi.java.JavaPsiFileFactoryPool;
 import org.accula.api.token.psi.java.JavaPsiUtils;
 import org.accula.api.util.Lambda;
+import org.accula.api.util.ReactorSchedulers;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
 
 import static java.util.stream.Collectors.toList;
 
@@ -25,36 +25,58 @@ import static java.util.stream.Collectors.toList;
  * @author Anton Lamtev
  */
 public final class JavaTokenProvider<Ref> implements TokenProvider<Ref> {
+    private static final int VERSION = 1;
+    private static final JavaPsiFileFactoryPool PSI_FILE_FACTORIES = JavaPsiFileFactoryPool.instance();
+    private static final int TOKENIZATION_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final Scheduler TOKENIZATION_SCHEDULER = ReactorSchedulers.parallel("JavaTokenization");
+
+    @Override
+    public Flux<TokenStream<Ref>> tokenStreams(final Flux<FileEntity<Ref>> files) {
+        return files
+                .flatMapSequential(file -> Mono
+                        .fromCallable(() -> fileTokens(file))
+                        .subscribeOn(TOKENIZATION_SCHEDULER), TOKENIZATION_PARALLELISM)
+                .flatMapIterable(Function.identity());
+    }
+
     @Override
-    public Flux<List<Token<Ref>>> tokensByMethods(final Flux<FileEntity<Ref>> files) {
-        return javaPsiFileFactory().flatMapMany(psiFileFactory ->
-                files.flatMapIterable(file ->
-                        JavaPsiUtils
-                                .methods(psiFileFactory.createFileFromText(file.getName(), JavaLanguage.INSTANCE, file.getContent()))
-                                .stream()
-                                .map(Lambda.passingTailArg(JavaTokenProvider::methodTokens, file))
-                                .collect(toList())));
+    public int version() {
+        return VERSION;
     }
 
-    private static <Ref> List<Token<Ref>> methodTokens(final PsiMethod method, final FileEntity<Ref> file) {
-        return TraverseUtils
-                .dfs(method.getBody(), TraverseUtils.stream(PsiElement::getChildren))
-                .filter(JavaPsiUtils::isValuableToken)
-                .map(Lambda.passingTailArgs(Token::of, method.getName(), file.getRef()))
-                .collect(toList());
+    /// Methods of each file are kept together and in order, so are the files
+    private static <Ref> List<TokenStream<Ref>> fileTokens(final FileEntity<Ref> file) {
+        return PSI_FILE_FACTORIES.use(psiFileFactory -> {
+            final var lines = LineNumbers.of(file.getContent());
+            return JavaPsiUtils
+                    .methods(psiFileFactory.createFileFromText(file.getName(), JavaLanguage.INSTANCE, file.getContent()))
+                    .stream()
+                    .map(Lambda.passingTailArgs(JavaTokenProvider::methodTokens, file, lines))
+                    .collect(toList());
+        });
     }
 
-    private static Mono<PsiFileFactory> javaPsiFileFactory() {
-        final var disposable = Disposer.newDisposable();
-        return Mono
-                .fromSupplier(() -> {
-                    final var appEnv = JavaApplicationEnvironment.of(disposable, true);
-                    final var projectEnv = new JavaCoreProjectEnvironment(disposable, appEnv);
-                    @SuppressWarnings("deprecation")//
-                    final var psiElfEpName = PsiElementFinder.EP_NAME;
-                    projectEnv.registerProjectExtensionPoint(psiElfEpName, PsiElementFinder.class);
-                    return PsiFileFactory.getInstance(projectEnv.getProject());
-                })
-                .doFinally(__ -> disposable.dispose());
+    /// Same tokens in the same order as the pre-order traversal of {@link PsiElement#getChildren()} of the method body,
+    /// but with an explicit stack and the lines of the precomputed line numbers instead of the file document
+    private static <Ref> TokenStream<Ref> methodTokens(final PsiMethod method, final FileEntity<Ref> file, final LineNumbers lines) {
+        final var tokens = TokenStream.builder(file.getRef(), method.getName(), file.getName());
+        final var elements = new ArrayDeque<PsiElement>();
+        elements.push(Objects.requireNonNull(method.getBody()));
+        while (!elements.isEmpty()) {
+            final var element = elements.pop();
+            if (JavaPsiUtils.isValuableToken(element)) {
+                final var textRange = element.getTextRange();
+                tokens.add(
+                        element.getNode().getElementType().toString(),
+                        lines.lineOf(textRange.getStartOffset()),
+                        lines.lineOf(textRange.getEndOffset())
+                );
+            }
+            final var children = element.getChildren();
+            for (int i = children.length - 1; i >= 0; --i) {
+                elements.push(children[i]);
+            }
+        }
+        return tokens.build();
     }
 }
@@ -0,0 +1,47 @@
+package org.accula.api.token.java;
+
+import java.util.Arrays;
+
+/**
+ * Line numbers of text offsets, computed from the precomputed line start offsets
+ * the way {@link com.intellij.openapi.editor.Document#getLineNumber(int)} computes them,
+ * so no document needs to be created for a file.
+ * Any of {@code \n}, {@code \r\n} and {@code \r} separates lines.
+ *
+ * @author Anton Lamtev
+ */
+final class LineNumbers {
+    private final int[] lineStarts;
+
+    private LineNumbers(final int[] lineStarts) {
+        this.lineStarts = lineStarts;
+    }
+
+    static LineNumbers of(final CharSequence text) {
+        var lineStarts = new int[Math.max(16, text.length() / 32)];
+        var lineCount = 1;
+        final var length = text.length();
+        for (int i = 0; i < length; ++i) {
+            final var c = text.charAt(i);
+            if (c != '\n' && c != '\r') {
+                continue;
+            }
+            if (c == '\r' && i + 1 < length && text.charAt(i + 1) == '\n') {
+                ++i;
+            }
+            if (lineCount == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+            }
+            lineStarts[lineCount++] = i + 1;
+        }
+        return new LineNumbers(Arrays.copyOf(lineStarts, lineCount));
+    }
+
+    /**
+     * @return 1-based number of the line containing the offset
+     */
+    int lineOf(final int offset) {
+        final var index = Arrays.binarySearch(lineStarts, offset);
+        return (index >= 0 ? index : -index - 2) + 1;
+    }
+}
@@ -0,0 +1,58 @@
+package org.accula.api.token.psi.java;
+
+import com.intellij.core.JavaCoreProjectEnvironment;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.psi.PsiElementFinder;
+import com.intellij.psi.PsiFileFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+/**
+ * Process-wide {@link JavaApplicationEnvironment} along with a pool of {@link PsiFileFactory}s.
+ * The environment is set up once and lives as long as the process does.
+ * Each factory belongs to its own project and is used by a single thread at a time,
+ * the pool grows up to the number of threads that use it simultaneously.
+ *
+ * @author Anton Lamtev
+ */
+public final class JavaPsiFileFactoryPool {
+    private final Queue<PsiFileFactory> idle = new ConcurrentLinkedQueue<>();
+    private final Disposable disposable = Disposer.newDisposable();
+    private final JavaApplicationEnvironment appEnv = JavaApplicationEnvironment.of(disposable, true);
+
+    private JavaPsiFileFactoryPool() {
+    }
+
+    public static JavaPsiFileFactoryPool instance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Borrows a factory for the duration of the use.
+     * PSI created by the factory MUST NOT be used after the use has finished.
+     */
+    public <T> T use(final Function<PsiFileFactory, T> use) {
+        final var borrowed = idle.poll();
+        final var psiFileFactory = borrowed != null ? borrowed : newPsiFileFactory();
+        try {
+            return use.apply(psiFileFactory);
+        } finally {
+            idle.offer(psiFileFactory);
+        }
+    }
+
+    private synchronized PsiFileFactory newPsiFileFactory() {
+        final var projectEnv = new JavaCoreProjectEnvironment(disposable, appEnv);
+        @SuppressWarnings("deprecation")//
+        final var psiElfEpName = PsiElementFinder.EP_NAME;
+        projectEnv.registerProjectExtensionPoint(psiElfEpName, PsiElementFinder.class);
+        return PsiFileFactory.getInstance(projectEnv.getProject());
+    }
+
+    private static final class Holder {
+        static final JavaPsiFileFactoryPool INSTANCE = new JavaPsiFileFactoryPool();
+    }
+}
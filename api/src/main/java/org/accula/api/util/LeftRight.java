@@ -0,0 +1,253 @@
+package org.accula.api.util;
+
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Left-right concurrency control: two copies of a mutable state, readers never wait for writers.
+ * <p>
+ * Readers use the published copy. Submitted changes are batched, applied to the other copy,
+ * which is then published atomically as a new generation, and applied to the former published copy
+ * once all its readers have left. Thus, each change is applied twice and MUST be deterministic.
+ * Changes are applied by whichever thread manages to become the writer, so there is no dedicated writer thread.
+ * <p>
+ * State derived from a copy as a whole (e.g. an index over it) is refreshed by the writer once per batch,
+ * before the copy is published, so readers never derive it themselves.
+ * <p>
+ * Both copies can be replaced with the ones rebuilt from scratch (see {@link #rebuild}) without blocking
+ * the readers and the writers for the rebuild time.
+ * <p>
+ * Memory: the state is kept twice, so its mutable parts take twice the memory of a single copy.
+ * The copies SHOULD share their immutable parts. A rebuild builds one more copy while the two former ones are still in use,
+ * and the second rebuilt copy is derived from it only after the former unpublished copy has been dropped,
+ * so the peak is three copies of the mutable parts rather than four.
+ *
+ * @author Anton Lamtev
+ */
+public final class LeftRight<T> {
+    private static final long READERS_AWAIT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+
+    private final Queue<Consumer<T>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final ReentrantLock writer = new ReentrantLock();
+    private final ReentrantLock rebuilder = new ReentrantLock();
+    private final Refresh<T> refresh;
+    /// Copies and the changes published since the rebuild in progress started, if any, are guarded by the writer lock
+    private T left;
+    private T right;
+    @Nullable
+    private List<Consumer<T>> publishedDuringRebuild;
+    private volatile Generation<T> published;
+
+    public LeftRight(final Supplier<T> factory) {
+        this(factory, (copy, upToDateCopy) -> {
+        });
+    }
+
+    /**
+     * @param refresh brings the derived state of the copy up to date once a batch has been applied to it
+     */
+    public LeftRight(final Supplier<T> factory, final Refresh<T> refresh) {
+        this.refresh = refresh;
+        left = factory.get();
+        right = factory.get();
+        published = new Generation<>(left, 0L);
+    }
+
+    /**
+     * Reads the published copy. The read operation MUST NOT modify it.
+     */
+    public <R> R read(final Function<T, R> readOp) {
+        return readGeneration((state, generation) -> readOp.apply(state));
+    }
+
+    /**
+     * Reads the published copy along with its generation number. The read operation MUST NOT modify it.
+     */
+    public <R> R readGeneration(final ReadOp<T, R> readOp) {
+        while (true) {
+            final var generation = published;
+            final var readers = generation.readers;
+            readers.incrementAndGet();
+            if (generation != published) {
+                readers.decrementAndGet();
+                continue;
+            }
+            try {
+                return readOp.read(generation.state, generation.number);
+            } finally {
+                readers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Submits the change to be published by the current writer, or publishes it right away
+     * if no other thread is publishing at the moment.
+     */
+    public void submit(final Consumer<T> change) {
+        pending.add(change);
+        submitted.incrementAndGet();
+        while (!pending.isEmpty() && writer.tryLock()) {
+            try {
+                publishPending();
+            } finally {
+                writer.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until all the changes submitted so far are published
+     */
+    public void flush() {
+        writer.lock();
+        try {
+            publishPending();
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    /**
+     * Replaces both copies with the ones rebuilt from a snapshot of the published copy.
+     * A copy is rebuilt once while the readers and the writers go on with the former ones,
+     * then the changes published meanwhile are replayed to it, it is published,
+     * and the other copy is derived from it.
+     * The writer lock is held only to take the snapshot, to replay the changes and to derive the other copy.
+     *
+     * @param snapshot takes what the rebuild needs from the published copy, or null if the copies need no rebuild,
+     *                 it MUST NOT modify the copy or keep references to its mutable parts
+     * @param rebuild  builds a copy from the snapshot
+     * @param copy     derives an equal copy from the rebuilt one, sharing its immutable parts,
+     *                 it MUST NOT modify the rebuilt copy since the readers may be reading it already
+     */
+    public <S> void rebuild(final Function<T, S> snapshot, final Function<S, T> rebuild, final UnaryOperator<T> copy) {
+        rebuilder.lock();
+        try {
+            final S state;
+            writer.lock();
+            try {
+                publishPending();
+                state = snapshot.apply(published.state);
+                if (state != null) {
+                    publishedDuringRebuild = new ArrayList<>();
+                }
+            } finally {
+                writer.unlock();
+            }
+            if (state == null) {
+                return;
+            }
+            T rebuilt = null;
+            try {
+                rebuilt = rebuild.apply(state);
+            } finally {
+                writer.lock();
+                try {
+                    publishPending();
+                    if (rebuilt != null) {
+                        publishRebuilt(rebuilt, copy);
+                    }
+                    publishedDuringRebuild = null;
+                } finally {
+                    writer.unlock();
+                }
+            }
+        } finally {
+            rebuilder.unlock();
+        }
+    }
+
+    /**
+     * @return number of the published generations
+     */
+    public long generation() {
+        return published.number;
+    }
+
+    /**
+     * @return number of the changes submitted but not published yet
+     */
+    public long pendingChangeCount() {
+        return submitted.get() - applied.get();
+    }
+
+    private void publishPending() {
+        final var batch = new ArrayList<Consumer<T>>();
+        for (var change = pending.poll(); change != null; change = pending.poll()) {
+            batch.add(change);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        final var formerGeneration = published;
+        final var formerlyPublished = formerGeneration.state;
+        final var back = formerlyPublished == left ? right : left;
+        batch.forEach(change -> change.accept(back));
+        refresh.refresh(back, null);
+        published = new Generation<>(back, formerGeneration.number + 1);
+        applied.addAndGet(batch.size());
+        final var formerReaders = formerGeneration.readers;
+        while (formerReaders.get() != 0) {
+            LockSupport.parkNanos(READERS_AWAIT_PARK_NANOS);
+        }
+        batch.forEach(change -> change.accept(formerlyPublished));
+        refresh.refresh(formerlyPublished, back);
+        if (publishedDuringRebuild != null) {
+            publishedDuringRebuild.addAll(batch);
+        }
+    }
+
+    /// Readers of the former copies are not waited for, since the former copies are never changed anymore.
+    /// Both former copies are dropped before the other copy is derived, so the unpublished one can be collected meanwhile
+    private void publishRebuilt(final T rebuilt, final UnaryOperator<T> copy) {
+        Objects.requireNonNull(publishedDuringRebuild).forEach(change -> change.accept(rebuilt));
+        refresh.refresh(rebuilt, null);
+        published = new Generation<>(rebuilt, published.number + 1);
+        left = rebuilt;
+        right = rebuilt;
+        right = copy.apply(rebuilt);
+        refresh.refresh(right, left);
+    }
+
+    @FunctionalInterface
+    public interface ReadOp<T, R> {
+        R read(T state, long generation);
+    }
+
+    @FunctionalInterface
+    public interface Refresh<T> {
+        /**
+         * @param upToDateCopy the other copy if the same changes have been applied and refreshed to it already,
+         *                     so the derived state can be shared by both copies instead of being derived twice
+         */
+        void refresh(T copy, @Nullable T upToDateCopy);
+    }
+
+    private static final class Generation<T> {
+        final T state;
+        final long number;
+        final AtomicInteger readers = new AtomicInteger();
+
+        Generation(final T state, final long number) {
+            this.state = state;
+            this.number = number;
+        }
+    }
+}
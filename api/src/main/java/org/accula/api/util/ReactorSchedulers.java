@@ -26,4 +26,9 @@ public final class ReactorSchedulers {
                 true
         );
     }
+
+    /// For CPU-bound work: one thread per core
+    public static Scheduler parallel(final String name) {
+        return Schedulers.newParallel(name + "-parallel", Runtime.getRuntime().availableProcessors(), true);
+    }
 }
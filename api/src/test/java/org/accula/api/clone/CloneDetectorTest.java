@@ -5,29 +5,36 @@ import org.accula.api.code.FileEntity;
 import org.accula.api.db.model.GithubRepo;
 import org.accula.api.db.model.GithubUser;
 import org.accula.api.db.model.Snapshot;
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
+import reactor.util.function.Tuple2;
 import reactor.util.function.Tuples;
 
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
 /**
  * @author Vadim Dyachkov
  * @author Anton Lamtev
  */
 class CloneDetectorTest {
-    CloneDetector cloneDetector;
-
-    @BeforeEach
-    void setUp() {
-        cloneDetector = new CloneDetectorImpl(() -> Mono.just(CloneDetector.Config.builder().minCloneLength(1).build()));
+    static CloneDetector cloneDetector(final CloneDetector.Engine engine) {
+        return new CloneDetectorImpl(() -> Mono.just(CloneDetector.Config.builder().minCloneLength(1).engine(engine).build()));
     }
 
-    @Test
-    void test() {
+    @ParameterizedTest
+    @EnumSource(CloneDetector.Engine.class)
+    void test(CloneDetector.Engine engine) {
+        var cloneDetector = cloneDetector(engine);
         var repoOwner1 = new GithubUser(2L, "owner1", "owner1", "ava1", false);
         var repoOwner2 = new GithubUser(3L, "owner2", "owner2", "ava2", false);
         var repo1 = new GithubRepo(2L, "repo1", "descr1", repoOwner1);
@@ -97,4 +104,102 @@ class CloneDetectorTest {
                 })
                 .verifyComplete();
     }
+
+    @Test
+    void testEnginesReturnIdenticalClones() {
+        var repoOwner1 = new GithubUser(2L, "owner1", "owner1", "ava1", false);
+        var repoOwner2 = new GithubUser(3L, "owner2", "owner2", "ava2", false);
+        var repoOwner3 = new GithubUser(4L, "owner3", "owner3", "ava3", false);
+        var repo1 = new GithubRepo(2L, "repo1", "descr1", repoOwner1);
+        var repo2 = new GithubRepo(3L, "repo2", "descr2", repoOwner2);
+        var repo3 = new GithubRepo(4L, "repo3", "descr3", repoOwner3);
+        var commitSnapshot1 = Snapshot.builder().sha("sha1").branch("branch1").repo(repo1).build();
+        var commitSnapshot2 = Snapshot.builder().sha("sha2").branch("branch2").repo(repo2).build();
+        var commitSnapshot3 = Snapshot.builder().sha("sha3").branch("branch3").repo(repo3).build();
+
+        var sources = List.of(
+                new FileEntity<>(commitSnapshot1, "owner1/repo1/src/main/java/Cell.java", SuffixTreeCloneDetectorTest.F1),
+                new FileEntity<>(commitSnapshot1, "owner1/repo1/src/main/java/SSTable.java", SuffixTreeCloneDetectorTest.F3),
+                new FileEntity<>(commitSnapshot2, "owner2/repo2/src/main/java/Cell.java", SuffixTreeCloneDetectorTest.F2),
+                new FileEntity<>(commitSnapshot2, "owner2/repo2/src/main/java/Value.java", SuffixTreeCloneDetectorTest.F4)
+        );
+        var targets = List.of(
+                new FileEntity<>(commitSnapshot3, "owner3/repo3/src/main/java/Cell.java", SuffixTreeCloneDetectorTest.F2),
+                new FileEntity<>(commitSnapshot3, "owner3/repo3/src/main/java/SSTable.java", SuffixTreeCloneDetectorTest.F3),
+                new FileEntity<>(commitSnapshot3, "owner3/repo3/src/main/java/Value.java", SuffixTreeCloneDetectorTest.F4)
+        );
+
+        var suffixTreeClones = findClones(CloneDetector.Engine.SUFFIX_TREE, sources, commitSnapshot3, targets);
+        var suffixArrayClones = findClones(CloneDetector.Engine.SUFFIX_ARRAY, sources, commitSnapshot3, targets);
+
+        assertFalse(suffixTreeClones.isEmpty());
+        assertEquals(suffixTreeClones.size(), new HashSet<>(suffixTreeClones).size());
+        assertEquals(new HashSet<>(suffixTreeClones), new HashSet<>(suffixArrayClones));
+        assertEquals(suffixTreeClones.size(), suffixArrayClones.size());
+    }
+
+    @ParameterizedTest
+    @EnumSource(CloneDetector.Engine.class)
+    void testIdenticalBlobs(CloneDetector.Engine engine) {
+        var repoOwner1 = new GithubUser(2L, "owner1", "owner1", "ava1", false);
+        var repoOwner2 = new GithubUser(3L, "owner2", "owner2", "ava2", false);
+        var repo1 = new GithubRepo(2L, "repo1", "descr1", repoOwner1);
+        var repo2 = new GithubRepo(3L, "repo2", "descr2", repoOwner2);
+        var commitSnapshot1 = Snapshot.builder().sha("sha1").branch("branch1").repo(repo1).build();
+        var commitSnapshot2 = Snapshot.builder().sha("sha2").branch("branch2").repo(repo2).build();
+
+        var source = new FileEntity<>(commitSnapshot1, "owner1/repo1/src/main/java/SSTable.java", SuffixTreeCloneDetectorTest.F3, "blob3");
+        var target = new FileEntity<>(commitSnapshot2, "owner2/repo2/src/main/java/SSTable.java", SuffixTreeCloneDetectorTest.F3, "blob3");
+
+        var clones = findClones(engine, List.of(source), commitSnapshot2, List.of(target));
+
+        assertEquals(1, clones.size());
+        var clone = clones.get(0);
+        assertEquals(new CodeSnippet(commitSnapshot2, target.getName(), clone.getT2().getFromLine(), clone.getT2().getToLine()), clone.getT1());
+        assertEquals(commitSnapshot1, clone.getT2().getSnapshot());
+        assertEquals(source.getName(), clone.getT2().getFile());
+    }
+
+    @ParameterizedTest
+    @EnumSource(CloneDetector.Engine.class)
+    void testBlobIsHandedOverOnceItsRepoUnlinksIt(CloneDetector.Engine engine) {
+        var repoOwner1 = new GithubUser(2L, "owner1", "owner1", "ava1", false);
+        var repoOwner2 = new GithubUser(3L, "owner2", "owner2", "ava2", false);
+        var repo1 = new GithubRepo(2L, "repo1", "descr1", repoOwner1);
+        var repo2 = new GithubRepo(3L, "repo2", "descr2", repoOwner2);
+        var commitSnapshot1 = Snapshot.builder().sha("sha1").branch("branch1").repo(repo1).build();
+        var commitSnapshot2 = Snapshot.builder().sha("sha2").branch("branch2").repo(repo2).build();
+        var commitSnapshot3 = Snapshot.builder().sha("sha3").branch("branch1").repo(repo1).build();
+
+        var owned = new FileEntity<>(commitSnapshot1, "owner1/repo1/src/SSTable.java", SuffixTreeCloneDetectorTest.F3, "blob3");
+        var shared = new FileEntity<>(commitSnapshot2, "owner2/repo2/src/SSTable.java", SuffixTreeCloneDetectorTest.F3, "blob3");
+        var copied = new FileEntity<>(commitSnapshot3, "owner1/repo1/src/Table.java", SuffixTreeCloneDetectorTest.F3, "blob4");
+
+        var cloneDetector = cloneDetector(engine);
+        StepVerifier.create(cloneDetector.fill(Flux.just(owned, shared)))
+                .verifyComplete();
+        StepVerifier.create(cloneDetector.remove(commitSnapshot1))
+                .verifyComplete();
+        var clones = cloneDetector.findClones(commitSnapshot3, Flux.just(copied)).collectList().block();
+
+        assertNotNull(clones);
+        assertFalse(clones.isEmpty());
+        clones.forEach(clone -> {
+            assertEquals(commitSnapshot3, clone.getT1().getSnapshot());
+            assertEquals(commitSnapshot2, clone.getT2().getSnapshot());
+            assertEquals(shared.getName(), clone.getT2().getFile());
+        });
+    }
+
+    static List<Tuple2<CodeSnippet, CodeSnippet>> findClones(CloneDetector.Engine engine,
+                                                             List<FileEntity<Snapshot>> sources,
+                                                             Snapshot target,
+                                                             List<FileEntity<Snapshot>> targets) {
+        var cloneDetector = cloneDetector(engine);
+        StepVerifier.create(cloneDetector.fill(Flux.fromIterable(sources)))
+                .verifyComplete();
+        var clones = cloneDetector.findClones(target, Flux.fromIterable(targets)).collectList().block();
+        assertNotNull(clones);
+        return clones;
+    }
 }
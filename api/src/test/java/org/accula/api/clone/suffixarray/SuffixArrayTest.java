@@ -0,0 +1,52 @@
+package org.accula.api.clone.suffixarray;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Anton Lamtev
+ */
+class SuffixArrayTest {
+    @Test
+    void testRandomTexts() {
+        final var random = new Random(42);
+        for (int iteration = 0; iteration < 500; ++iteration) {
+            final var upper = 1 + random.nextInt(iteration % 2 == 0 ? 3 : 50);
+            final var text = random.ints(random.nextInt(300), 0, upper + 1).toArray();
+            final var suffixArray = SuffixArray.of(text, upper);
+
+            final var expected = IntStream
+                    .range(0, text.length)
+                    .boxed()
+                    .sorted((l, r) -> compareSuffixes(text, l, r))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            assertArrayEquals(expected, IntStream.range(0, suffixArray.size()).map(suffixArray::suffix).toArray());
+
+            for (int rank = 0; rank + 1 < text.length; ++rank) {
+                assertEquals(commonPrefixLength(text, expected[rank], expected[rank + 1]), suffixArray.lcp(rank));
+            }
+        }
+    }
+
+    static int compareSuffixes(final int[] text, final int l, final int r) {
+        final var length = commonPrefixLength(text, l, r);
+        if (l + length == text.length || r + length == text.length) {
+            return Integer.compare(r, l);
+        }
+        return Integer.compare(text[l + length], text[r + length]);
+    }
+
+    static int commonPrefixLength(final int[] text, final int l, final int r) {
+        int length = 0;
+        while (l + length < text.length && r + length < text.length && text[l + length] == text[r + length]) {
+            ++length;
+        }
+        return length;
+    }
+}
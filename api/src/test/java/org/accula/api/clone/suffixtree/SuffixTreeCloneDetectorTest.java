@@ -1,14 +1,18 @@
 package org.accula.api.clone.suffixtree;
 
 import org.accula.api.code.FileEntity;
-import org.accula.api.token.Token;
 import org.accula.api.token.TokenProvider;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import reactor.core.publisher.Flux;
 import reactor.test.StepVerifier;
 
+import java.util.Set;
 import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toSet;
 
 /**
  * @author Anton Lamtev
@@ -94,7 +98,7 @@ public class SuffixTreeCloneDetectorTest {
             }
              """;
     final TokenProvider<String> tokenProvider = TokenProvider.of(TokenProvider.Language.JAVA);
-    SuffixTreeCloneDetector<Token<String>, String> detector;
+    SuffixTreeCloneDetector<String> detector;
 
     @BeforeEach
     void setUp() {
@@ -110,7 +114,7 @@ public class SuffixTreeCloneDetectorTest {
                 .collectList())
                 .expectNextMatches(methods -> {
                     methods.forEach(method -> detector.addTokens(method));
-                    return detector.cloneClassesAfterTransform(Function.identity()).size() == 3;
+                    return detector.cloneClassesAfterTransform(Function.identity()).getCloneClasses().size() == 3;
                 })
                 .verifyComplete();
     }
@@ -124,7 +128,7 @@ public class SuffixTreeCloneDetectorTest {
                 .collectList())
                 .expectNextMatches(methods -> {
                     methods.forEach(method -> detector.addTokens(method));
-                    final var cloneClasses = detector.cloneClassesAfterTransform(Function.identity());
+                    final var cloneClasses = detector.cloneClassesAfterTransform(Function.identity()).getCloneClasses();
                     //It is not straightforward but there are 5 clone classes here
                     //Actually 4 of them are subclasses of the largest one
                     //Since SuffixTreeCloneDetector do not perform any smart filtering, the result is ok
@@ -132,4 +136,55 @@ public class SuffixTreeCloneDetectorTest {
                 })
                 .verifyComplete();
     }
+
+    @Test
+    void testRefScopedLookup() {
+        final var f1 = new FileEntity<>("ref1", "SSTable.java", F3);
+        final var f2 = new FileEntity<>("ref2", "SSTable.java", F4);
+        final var f3 = new FileEntity<>("ref3", "Cell.java", F1);
+
+        StepVerifier.create(tokenProvider.tokensByMethods(Flux.just(f1, f2, f3))
+                .collectList())
+                .expectNextMatches(methods -> {
+                    methods.forEach(method -> detector.addTokens(method));
+                    final var allCloneClasses = detector.cloneClassesAfterTransform(Function.identity()).getCloneClasses();
+                    return Stream.of("ref1", "ref2", "ref3", "absent").allMatch(ref ->
+                            IntStream.of(0, 5, 10).allMatch(minLength ->
+                                    Set.copyOf(detector.cloneClassesAfterTransform(ref, minLength, Function.identity()).getCloneClasses())
+                                            .equals(allCloneClasses
+                                                    .stream()
+                                                    .filter(cloneClass -> cloneClass.getLength() >= minLength
+                                                                          && cloneClass.getClones().stream().anyMatch(clone -> clone.ref().equals(ref))
+                                                                          && cloneClass.getClones().stream().anyMatch(clone -> !clone.ref().equals(ref)))
+                                                    .collect(toSet()))));
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void testRemoveAndCompact() {
+        final var f1 = new FileEntity<>("ref1", "Cell.java", F1);
+        final var f2 = new FileEntity<>("ref2", "Cell.java", F2);
+        final var f3 = new FileEntity<>("ref3", "Cell.java", F2);
+
+        StepVerifier.create(tokenProvider.tokensByMethods(Flux.just(f1, f2, f3))
+                .collectList())
+                .expectNextMatches(methods -> {
+                    methods.stream().filter(method -> !method.get(0).getRef().equals("ref3")).forEach(detector::addTokens);
+                    if (detector.cloneClassesAfterTransform(Function.identity()).getCloneClasses().size() != 3) {
+                        return false;
+                    }
+                    detector.remove("ref2");
+                    if (!detector.cloneClassesAfterTransform(Function.identity()).getCloneClasses().isEmpty()) {
+                        return false;
+                    }
+                    detector.compact();
+                    if (!detector.cloneClassesAfterTransform(Function.identity()).getCloneClasses().isEmpty() || detector.needsCompaction()) {
+                        return false;
+                    }
+                    methods.stream().filter(method -> method.get(0).getRef().equals("ref3")).forEach(detector::addTokens);
+                    return detector.cloneClassesAfterTransform(Function.identity()).getCloneClasses().size() == 3;
+                })
+                .verifyComplete();
+    }
 }
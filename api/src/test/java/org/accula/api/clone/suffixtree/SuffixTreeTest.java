@@ -0,0 +1,79 @@
+package org.accula.api.clone.suffixtree;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.accula.api.clone.suffixtree.SuffixTree.NONE;
+import static org.accula.api.clone.suffixtree.SuffixTree.ROOT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Anton Lamtev
+ */
+class SuffixTreeTest {
+    @Test
+    void testOnHeap() {
+        testRandomSequences(SuffixTree::onHeap);
+    }
+
+    @Test
+    void testOffHeap() {
+        testRandomSequences(SuffixTree::offHeap);
+    }
+
+    static void testRandomSequences(final Supplier<SuffixTree> treeSupplier) {
+        final var random = new Random(42);
+        for (int iteration = 0; iteration < 200; ++iteration) {
+            final var tree = treeSupplier.get();
+            final var sequenceCount = 1 + random.nextInt(30);
+            final var alphabetSize = 1 + random.nextInt(4);
+            for (int i = 0; i < sequenceCount; ++i) {
+                final var sequence = new int[random.nextInt(40)];
+                for (int j = 0; j < sequence.length; ++j) {
+                    sequence[j] = random.nextInt(alphabetSize);
+                }
+                assertEquals(i, tree.addSequence(sequence));
+                assertEquals(sequence.length, tree.sequenceLength(i));
+            }
+
+            int leafCount = 0;
+            for (int node = ROOT + 1; node < tree.nodeCount(); ++node) {
+                if (tree.isLeaf(node)) {
+                    ++leafCount;
+                    continue;
+                }
+                int childCount = 0;
+                for (int child = tree.firstChild(node); child != NONE; child = tree.nextSibling(child)) {
+                    ++childCount;
+                    assertEquals(node, tree.parent(child));
+                    assertEquals(child, tree.child(node, tree.symbol(tree.edgeStart(child))));
+                }
+                assertTrue(childCount >= 2);
+            }
+            assertEquals(tree.textLength(), leafCount);
+
+            for (int suffix = 0; suffix < tree.textLength(); ++suffix) {
+                assertEquals(suffix, leafBySpelling(tree, suffix));
+            }
+        }
+    }
+
+    /// Spells the suffix from the root and returns the suffix start stored in the leaf reached
+    static int leafBySpelling(final SuffixTree tree, final int suffix) {
+        int node = ROOT;
+        int position = suffix;
+        while (node == ROOT || !tree.isLeaf(node)) {
+            node = tree.child(node, tree.symbol(position));
+            assertNotEquals(NONE, node);
+            for (int i = tree.edgeStart(node); i < tree.edgeEnd(node); ++i, ++position) {
+                assertEquals(tree.symbol(position), tree.symbol(i));
+            }
+        }
+        assertTrue(SuffixTree.isTerminal(tree.symbol(position - 1)));
+        return tree.suffixStart(node);
+    }
+}
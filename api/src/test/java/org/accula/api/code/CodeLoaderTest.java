@@ -1,5 +1,6 @@
 package org.accula.api.code;
 
+import org.accula.api.code.git.BlobCache;
 import org.accula.api.code.git.Git;
 import org.accula.api.db.model.GithubRepo;
 import org.accula.api.db.model.GithubUser;
@@ -10,6 +11,7 @@ import org.junit.jupiter.api.io.TempDir;
 import reactor.test.StepVerifier;
 
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
@@ -37,12 +39,15 @@ class CodeLoaderTest {
             .branch("branch")
             .repo(REPO)
             .build();
+    public static final long BLOB_CACHE_SIZE = 16L << 20;
+    public static final Git.Timeouts TIMEOUTS = new Git.Timeouts(Duration.ofMinutes(10), Duration.ofMinutes(5), Duration.ofMinutes(1));
 
     CodeLoader codeLoader;
 
     @BeforeEach
     void beforeAll(@TempDir final Path tempDir) {
-        codeLoader = new GitCodeLoader(new Git(tempDir, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())));
+        final var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        codeLoader = new GitCodeLoader(new Git(tempDir, executor, new BlobCache(BLOB_CACHE_SIZE), Git.CloneMode.FULL, TIMEOUTS));
     }
 
     @Test
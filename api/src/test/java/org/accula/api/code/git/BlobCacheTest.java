@@ -0,0 +1,33 @@
+package org.accula.api.code.git;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Anton Lamtev
+ */
+final class BlobCacheTest {
+    static final long MAX_BYTES = 1000L;
+    static final int BLOB_SIZE = 40;
+
+    @Test
+    void testBytesStayBelowMaxBytes() {
+        final var cache = new BlobCache(MAX_BYTES);
+        cache.putAll(Map.of("blob1", new byte[BLOB_SIZE], "blob2", new byte[BLOB_SIZE]));
+        assertEquals(2L * BLOB_SIZE, cache.bytes());
+        assertEquals(2, cache.getAllPresent(List.of("blob1", "blob2", "blob3")).size());
+        assertEquals(2L, cache.stats().hitCount());
+        assertEquals(1L, cache.stats().missCount());
+
+        IntStream.range(0, 100).forEach(i -> cache.putAll(Map.of("blob" + i, new byte[BLOB_SIZE])));
+        assertTrue(cache.bytes() <= MAX_BYTES);
+        assertEquals(cache.size() * BLOB_SIZE, cache.bytes());
+        assertTrue(cache.stats().evictionCount() > 0L);
+    }
+}
@@ -0,0 +1,54 @@
+package org.accula.api.code.git;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Anton Lamtev
+ */
+final class CommitCacheTest {
+    static final String BASE_SHA = "7a019e571e2716f7f133e1a63a49f300e03aea00";
+    static final String HEAD_SHA = "69f552851f0f6093816c3064b6e00438e0ff3b19";
+    static final String BLOB = "4565b4dcbbb38e655115621f1fbf039ec31fd3d0";
+
+    @Test
+    void testTreeIsListedOncePerSha() {
+        final var cache = new CommitCache();
+        final var lsTreeCount = new AtomicInteger();
+        final var lsTree = counting(lsTreeCount, Optional.of(List.of(GitFile.of(BLOB, "A.java"))));
+
+        assertSame(cache.tree(HEAD_SHA, lsTree), cache.tree(HEAD_SHA, lsTree));
+        assertEquals(1, lsTreeCount.get());
+
+        cache.tree("master", lsTree);
+        cache.tree("master", lsTree);
+        assertEquals(3, lsTreeCount.get());
+    }
+
+    @Test
+    void testFailedDiffIsNotCached() {
+        final var cache = new CommitCache();
+        final var diffCount = new AtomicInteger();
+
+        assertTrue(cache.diff(BASE_SHA, HEAD_SHA, 0, counting(diffCount, Optional.empty())).isEmpty());
+        final var diff = counting(diffCount, Optional.of(List.of(GitDiffEntry.addition(BLOB, "A.java"))));
+        assertEquals(1, cache.diff(BASE_SHA, HEAD_SHA, 0, diff).size());
+        assertEquals(1, cache.diff(BASE_SHA, HEAD_SHA, 0, diff).size());
+        assertEquals(2, diffCount.get());
+    }
+
+    static <T> Supplier<Optional<List<T>>> counting(final AtomicInteger counter, final Optional<List<T>> result) {
+        return () -> {
+            counter.incrementAndGet();
+            return result;
+        };
+    }
+}
@@ -0,0 +1,73 @@
+package org.accula.api.code.git;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Anton Lamtev
+ */
+final class GitOutputTest {
+    static final String BASE_ID = "4565b4dcbbb38e655115621f1fbf039ec31fd3d0";
+    static final String HEAD_ID = "587be6b4c3f93f93c489c0111bba5596147a26cb";
+    static final String ZERO_ID = "0000000000000000000000000000000000000000";
+
+    @Test
+    void testDiffEntries() {
+        final var output = bytes(
+                ":100644 100644 " + BASE_ID + " " + HEAD_ID + " R086\0src/A.java\0src/B c.java\0" +
+                ":100644 100644 " + BASE_ID + " " + HEAD_ID + " C100\0src/C.java\0src/D.java\0" +
+                ":100644 100644 " + BASE_ID + " " + HEAD_ID + " M\0src/\u041c\u043e\u0434\u0443\u043b\u044c.java\0" +
+                ":000000 100644 " + ZERO_ID + " " + HEAD_ID + " A\0src/E.java\0" +
+                ":100644 000000 " + BASE_ID + " " + ZERO_ID + " D\0src/F.java\0"
+        );
+        assertEquals(List.of(
+                GitDiffEntry.renaming(BASE_ID, "src/A.java", HEAD_ID, "src/B c.java", 86),
+                GitDiffEntry.modification(BASE_ID, HEAD_ID, "src/\u041c\u043e\u0434\u0443\u043b\u044c.java"),
+                GitDiffEntry.addition(HEAD_ID, "src/E.java"),
+                GitDiffEntry.deletion(BASE_ID, "src/F.java")
+        ).toString(), GitOutput.diffEntries(output).toString());
+    }
+
+    @Test
+    void testShowEntries() {
+        final var output = bytes(
+                ":100644 100644 " + BASE_ID + " " + HEAD_ID + " R100\0A.java\0B.java\0" +
+                ":100644 000000 " + BASE_ID + " " + ZERO_ID + " D\0C.java\0" +
+                ":000000 100644 " + ZERO_ID + " " + HEAD_ID + " A\0D E.java\0"
+        );
+        assertEquals(
+                List.of(GitFile.of(HEAD_ID, "B.java"), GitFile.of(HEAD_ID, "D E.java")).toString(),
+                GitOutput.showEntries(output).toString()
+        );
+    }
+
+    @Test
+    void testLsTreeEntries() {
+        final var output = bytes(
+                "100644 blob " + BASE_ID + "\tB c.java\0" +
+                "100644 blob " + HEAD_ID + "\tsrc/main/java/Main.java\0"
+        );
+        assertEquals(
+                List.of(GitFile.of(BASE_ID, "B c.java"), GitFile.of(HEAD_ID, "src/main/java/Main.java")).toString(),
+                GitOutput.lsTreeEntries(output).toString()
+        );
+    }
+
+    @Test
+    void testLines() {
+        final var content = bytes("class A {\r\n" + HEAD_ID + "\n\n    int a;\r}");
+        assertEquals("class A {\r\n", GitOutput.lines(content, 1, 1));
+        assertEquals(HEAD_ID + "\n\n    int a;\r", GitOutput.lines(content, 2, 4));
+        assertEquals("}", GitOutput.lines(content, 5, 10));
+        assertEquals("", GitOutput.lines(content, 6, 10));
+        assertEquals("class A {\r\n" + HEAD_ID + "\n\n    int a;\r}", GitOutput.lines(content, 0, 5));
+    }
+
+    static byte[] bytes(final String string) {
+        return string.getBytes(UTF_8);
+    }
+}
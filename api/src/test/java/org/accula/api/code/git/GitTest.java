@@ -4,16 +4,24 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.IntStream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toList;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -27,11 +35,15 @@ final class GitTest {
     static final String HEAD_REF = "69f552851f0f6093816c3064b6e00438e0ff3b19";
     static final String REMOTE_URL = "https://github.com/lamtev/poker.git";
     static final String REMOTE_NAME = "newRemote";
+    static final long BLOB_CACHE_SIZE = 16L << 20;
+    static final Git.Timeouts TIMEOUTS = new Git.Timeouts(Duration.ofMinutes(10), Duration.ofMinutes(5), Duration.ofMinutes(1));
+    static final String FIXTURE_REPO_DIR = "fixture";
     Git git;
 
     @BeforeEach
     void setUp(@TempDir final Path dir) {
-        git = new Git(dir, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 3));
+        final var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 3);
+        git = new Git(dir, executor, new BlobCache(BLOB_CACHE_SIZE), Git.CloneMode.FULL, TIMEOUTS);
     }
 
     @Test
@@ -173,4 +185,112 @@ final class GitTest {
                             assertNotNull(repo.remoteUpdate(REMOTE_NAME))));
         });
     }
+
+    @Test
+    void testBloblessCloneReadsBlobsOnDemand(@TempDir final Path dir) throws Exception {
+        final var origin = dir.resolve(FIXTURE_REPO_DIR);
+        Files.createDirectories(origin);
+        Files.writeString(origin.resolve("A.java"), "class A {}\n");
+        run(origin, "git", "init", "-q");
+        run(origin, "git", "add", "A.java");
+        run(origin, "git", "-c", "user.name=accula", "-c", "user.email=accula@accula", "commit", "-q", "-m", "init");
+        run(origin, "git", "config", "uploadpack.allowFilter", "true");
+        run(origin, "git", "config", "uploadpack.allowAnySHA1InWant", "true");
+        final var sha = run(origin, "git", "rev-parse", "HEAD");
+
+        final var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (var bloblessGit = new Git(dir, executor, new BlobCache(BLOB_CACHE_SIZE), Git.CloneMode.BLOBLESS, TIMEOUTS)) {
+            final var repo = bloblessGit.clone(origin.toUri().toString(), REPO_DIR).get();
+            assertNotNull(repo);
+            assertFalse(Files.exists(dir.resolve(REPO_DIR).resolve("A.java")));
+
+            final var files = repo.lsTree(sha).get();
+            assertEquals(1, files.size());
+            assertEquals(List.of("class A {}\n"), List.copyOf(repo.catFiles(files).get().values()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testBloblessReadsFetchMissingBlobsInBulk(@TempDir final Path dir) throws Exception {
+        final var origin = dir.resolve(FIXTURE_REPO_DIR);
+        Files.createDirectories(origin);
+        run(origin, "git", "init", "-q");
+        run(origin, "git", "config", "uploadpack.allowFilter", "true");
+        run(origin, "git", "config", "uploadpack.allowAnySHA1InWant", "true");
+        commit(origin, "A.java");
+        final var sha = commit(origin, "B.java");
+
+        final var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (var bloblessGit = new Git(dir, executor, new BlobCache(BLOB_CACHE_SIZE), Git.CloneMode.BLOBLESS, TIMEOUTS)) {
+            final var repo = bloblessGit.clone(origin.toUri().toString(), REPO_DIR).get();
+            assertNotNull(repo);
+            final var packs = packCount(dir.resolve(REPO_DIR));
+
+            final var files = repo.lsTree(sha).get();
+            assertEquals(2, repo.catFiles(files).get().size());
+            /// Blobs faulted in by cat-file one at a time would come in a pack each
+            assertEquals(packs + 1, packCount(dir.resolve(REPO_DIR)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testReadsFetchMissingCommits(@TempDir final Path dir) throws Exception {
+        final var origin = dir.resolve(FIXTURE_REPO_DIR);
+        Files.createDirectories(origin);
+        run(origin, "git", "init", "-q");
+        final var first = commit(origin, "A.java");
+
+        final var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (var fixtureGit = new Git(dir, executor, new BlobCache(BLOB_CACHE_SIZE), Git.CloneMode.FULL, TIMEOUTS)) {
+            final var repo = fixtureGit.clone(origin.toUri().toString(), REPO_DIR).get();
+            assertNotNull(repo);
+            final var second = commit(origin, "B.java");
+            assertTrue(repo.containsCommits(List.of(first)).get());
+            assertFalse(repo.containsCommits(List.of(first, second)).get());
+
+            final var reads = IntStream.range(0, 10)
+                    .mapToObj(it -> repo.lsTree(second))
+                    .collect(toList());
+            for (final var read : reads) {
+                assertEquals(2, read.get().size());
+            }
+            assertTrue(repo.containsCommits(List.of(first, second)).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testProcessIsDestroyedAfterTimeout(@TempDir final Path dir) throws Exception {
+        run(dir, "git", "init", "-q");
+        /// Waits for object ids on stdin forever
+        final var process = GitCall.start(new ProcessBuilder("git", "cat-file", "--batch").directory(dir.toFile()), Duration.ofMillis(100));
+        final var e = assertThrows(GitException.class, () -> GitCall.waitFor(process));
+        assertTrue(e.getCause() instanceof TimeoutException);
+        assertFalse(process.isAlive());
+    }
+
+    static String commit(final Path directory, final String file) throws IOException, InterruptedException {
+        Files.writeString(directory.resolve(file), "class " + file.replace(".java", "") + " {}\n");
+        run(directory, "git", "add", file);
+        run(directory, "git", "-c", "user.name=accula", "-c", "user.email=accula@accula", "commit", "-q", "-m", file);
+        return run(directory, "git", "rev-parse", "HEAD");
+    }
+
+    static long packCount(final Path repo) throws IOException {
+        try (var files = Files.list(repo.resolve(".git").resolve("objects").resolve("pack"))) {
+            return files.filter(file -> file.toString().endsWith(".pack")).count();
+        }
+    }
+
+    static String run(final Path directory, final String... command) throws IOException, InterruptedException {
+        final var process = new ProcessBuilder(command).directory(directory.toFile()).start();
+        final var stdout = new String(process.getInputStream().readAllBytes(), UTF_8);
+        assertEquals(0, process.waitFor());
+        return stdout.strip();
+    }
 }
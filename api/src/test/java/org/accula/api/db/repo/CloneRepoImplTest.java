@@ -0,0 +1,92 @@
+package org.accula.api.db.repo;
+
+import io.r2dbc.postgresql.api.PostgresqlResult;
+import io.r2dbc.postgresql.api.PostgresqlStatement;
+import io.r2dbc.spi.Connection;
+import org.accula.api.db.model.Clone;
+import org.accula.api.db.model.GithubRepo;
+import org.accula.api.db.model.GithubUser;
+import org.accula.api.db.model.Snapshot;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The database is replaced with a mocked connection, so only the statements and the transaction boundaries are checked
+ *
+ * @author Anton Lamtev
+ */
+class CloneRepoImplTest {
+    static final GithubRepo REPO = new GithubRepo(1L, "repo", "descr", new GithubUser(1L, "owner", "owner", "ava", false));
+    static final Snapshot SNAPSHOT = Snapshot.builder().sha("sha").branch("branch").repo(REPO).build();
+    static final Clone CLONE = Clone.builder()
+            .targetSnapshot(SNAPSHOT)
+            .targetFile("Cell.java")
+            .targetFromLine(1)
+            .targetToLine(2)
+            .sourceSnapshot(SNAPSHOT)
+            .sourceFile("Value.java")
+            .sourceFromLine(3)
+            .sourceToLine(4)
+            .build();
+
+    final Connection connection = mock(Connection.class);
+    final PostgresqlStatement delete = mock(PostgresqlStatement.class);
+    final PostgresqlStatement insert = mock(PostgresqlStatement.class);
+    final CloneRepoImpl cloneRepo = new CloneRepoImpl(() -> Mono.just(connection));
+
+    @BeforeEach
+    void setUp() {
+        doReturn(Mono.empty()).when(connection).beginTransaction();
+        doReturn(Mono.empty()).when(connection).commitTransaction();
+        doReturn(Mono.empty()).when(connection).rollbackTransaction();
+        doReturn(Mono.empty()).when(connection).close();
+        doReturn(delete).when(connection).createStatement(startsWith("DELETE"));
+        doReturn(insert).when(connection).createStatement(startsWith("INSERT"));
+        when(delete.bind(anyString(), any())).thenReturn(delete);
+        final var deleted = mock(PostgresqlResult.class);
+        when(deleted.getRowsUpdated()).thenReturn(Mono.just(2));
+        when(delete.execute()).thenReturn(Flux.just(deleted));
+    }
+
+    @Test
+    void testApplyDeltaDeletesAndInsertsInOneTransaction() {
+        final var inserted = mock(PostgresqlResult.class);
+        doReturn(Flux.just(10L)).when(inserted).map(any());
+        when(insert.execute()).thenReturn(Flux.just(inserted));
+
+        StepVerifier.create(cloneRepo.applyDelta(List.of(1L, 2L), List.of(CLONE)))
+                .expectNextMatches(clone -> clone.getId() == 10L && clone.getTargetFile().equals(CLONE.getTargetFile()))
+                .verifyComplete();
+        verify(delete).bind(eq("$1"), argThat(ids -> List.of((Long[]) ids).equals(List.of(1L, 2L))));
+        verify(connection).beginTransaction();
+        verify(connection).commitTransaction();
+        verify(connection, never()).rollbackTransaction();
+    }
+
+    @Test
+    void testApplyDeltaRollsBackDeletionOnInsertionFailure() {
+        when(insert.execute()).thenReturn(Flux.error(new IllegalStateException("insertion failed")));
+
+        StepVerifier.create(cloneRepo.applyDelta(List.of(1L, 2L), List.of(CLONE)))
+                .verifyError(IllegalStateException.class);
+        verify(delete).execute();
+        verify(connection).rollbackTransaction();
+        verify(connection, never()).commitTransaction();
+    }
+}
@@ -0,0 +1,129 @@
+package org.accula.api.db.repo;
+
+import io.r2dbc.postgresql.api.PostgresqlResult;
+import io.r2dbc.postgresql.api.PostgresqlStatement;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.Row;
+import io.r2dbc.spi.RowMetadata;
+import org.accula.api.db.model.GithubRepo;
+import org.accula.api.db.model.GithubUser;
+import org.accula.api.db.model.Pull;
+import org.accula.api.db.model.Snapshot;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The database is replaced with a mocked connection, so only the statements and the transaction boundaries are checked
+ *
+ * @author Anton Lamtev
+ */
+class PullRepoImplTest {
+    static final GithubUser OWNER = new GithubUser(1L, "owner", "owner", "ava", false);
+    static final GithubRepo REPO = new GithubRepo(1L, "repo", "descr", OWNER);
+    static final Snapshot BASE = Snapshot.builder().sha("base").branch("master").repo(REPO).build();
+    static final Snapshot HEAD = Snapshot.builder().sha("sha2").branch("branch").repo(REPO).build();
+    static final Pull PULL = Pull.builder()
+            .id(1L)
+            .number(1)
+            .title("title")
+            .open(true)
+            .createdAt(Instant.EPOCH)
+            .updatedAt(Instant.EPOCH)
+            .head(HEAD)
+            .base(BASE)
+            .author(OWNER)
+            .projectId(1L)
+            .build();
+
+    final Connection connection = mock(Connection.class);
+    final PostgresqlStatement insertMissing = mock(PostgresqlStatement.class);
+    final PostgresqlStatement lockHeads = mock(PostgresqlStatement.class);
+    final PostgresqlStatement upsert = mock(PostgresqlStatement.class);
+    final PullRepoImpl pullRepo = new PullRepoImpl(() -> Mono.just(connection));
+    final List<Snapshot> previousHeads = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        doReturn(Mono.empty()).when(connection).beginTransaction();
+        doReturn(Mono.empty()).when(connection).commitTransaction();
+        doReturn(Mono.empty()).when(connection).rollbackTransaction();
+        doReturn(Mono.empty()).when(connection).close();
+        doReturn(insertMissing).when(connection).createStatement(argThat(sql -> sql.contains("DO NOTHING")));
+        doReturn(upsert).when(connection).createStatement(argThat(sql -> sql.contains("DO UPDATE")));
+        doReturn(lockHeads).when(connection).createStatement(startsWith("SELECT"));
+        final var inserted = mock(PostgresqlResult.class);
+        when(inserted.getRowsUpdated()).thenReturn(Mono.just(1));
+        when(insertMissing.execute()).thenReturn(Flux.just(inserted));
+        when(upsert.execute()).thenReturn(Flux.just(inserted));
+        when(lockHeads.bind(eq("$1"), any())).thenReturn(lockHeads);
+        pullRepo.addOnHeadUpdate((pull, previousHead) -> previousHeads.add(previousHead));
+    }
+
+    @Test
+    void testUpsertReportsHeadLockedInTheSameTransaction() {
+        final var row = mock(Row.class);
+        when(row.get("id", Long.class)).thenReturn(PULL.getId());
+        when(row.get("head_snapshot_sha", String.class)).thenReturn("sha1");
+        final var locked = mock(PostgresqlResult.class);
+        doAnswer(invocation -> Flux.just(invocation.<BiFunction<Row, RowMetadata, ?>>getArgument(0).apply(row, null)))
+                .when(locked).map(any());
+        when(lockHeads.execute()).thenReturn(Flux.just(locked));
+
+        StepVerifier.create(pullRepo.upsert(List.of(PULL)))
+                .expectNext(PULL)
+                .verifyComplete();
+
+        assertEquals(1, previousHeads.size());
+        final var previousHead = previousHeads.get(0);
+        assertEquals("sha1", previousHead.getSha());
+        assertEquals(HEAD.getRepo(), previousHead.getRepo());
+        final InOrder order = inOrder(connection, insertMissing, lockHeads, upsert);
+        order.verify(connection).beginTransaction();
+        order.verify(insertMissing).execute();
+        order.verify(lockHeads).execute();
+        order.verify(upsert).execute();
+        order.verify(connection).commitTransaction();
+    }
+
+    @Test
+    void testUpsertOfUnchangedHeadReportsNothing() {
+        final var row = mock(Row.class);
+        when(row.get("id", Long.class)).thenReturn(PULL.getId());
+        when(row.get("head_snapshot_sha", String.class)).thenReturn(HEAD.getSha());
+        final var locked = mock(PostgresqlResult.class);
+        doAnswer(invocation -> Flux.just(invocation.<BiFunction<Row, RowMetadata, ?>>getArgument(0).apply(row, null)))
+                .when(locked).map(any());
+        when(lockHeads.execute()).thenReturn(Flux.just(locked));
+
+        StepVerifier.create(pullRepo.upsert(List.of(PULL)))
+                .expectNext(PULL)
+                .verifyComplete();
+
+        assertTrue(previousHeads.isEmpty());
+        verify(connection).commitTransaction();
+        verify(connection, never()).rollbackTransaction();
+    }
+}
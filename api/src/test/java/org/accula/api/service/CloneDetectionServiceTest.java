@@ -0,0 +1,182 @@
+package org.accula.api.service;
+
+import org.accula.api.clone.suffixtree.SuffixTreeCloneDetectorTest;
+import org.accula.api.code.CodeLoader;
+import org.accula.api.code.DiffEntry;
+import org.accula.api.code.FileEntity;
+import org.accula.api.code.FileFilter;
+import org.accula.api.db.model.Clone;
+import org.accula.api.db.model.GithubRepo;
+import org.accula.api.db.model.GithubUser;
+import org.accula.api.db.model.Project;
+import org.accula.api.db.model.Pull;
+import org.accula.api.db.model.Snapshot;
+import org.accula.api.db.repo.CloneRepo;
+import org.accula.api.db.repo.ProjectRepo;
+import org.accula.api.db.repo.PullRepo;
+import org.accula.api.token.corpus.TokenCorpus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.stream.Collectors.toSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Anton Lamtev
+ */
+class CloneDetectionServiceTest {
+    static final Long PROJECT_ID = 1L;
+    static final GithubRepo SOURCE_REPO = new GithubRepo(2L, "repo1", "descr1", new GithubUser(2L, "owner1", "owner1", "ava1", false));
+    static final GithubRepo TARGET_REPO = new GithubRepo(3L, "repo2", "descr2", new GithubUser(3L, "owner2", "owner2", "ava2", false));
+    static final Snapshot SOURCE = Snapshot.builder().sha("sha1").branch("branch1").repo(SOURCE_REPO).build();
+    static final Snapshot HEAD = Snapshot.builder().sha("sha2").branch("branch2").repo(TARGET_REPO).build();
+    static final Snapshot NEW_HEAD = Snapshot.builder().sha("sha3").branch("branch2").repo(TARGET_REPO).build();
+    static final Pull SOURCE_PULL = Pull.builder().id(1L).head(SOURCE).projectId(PROJECT_ID).build();
+    static final Pull PULL = Pull.builder().id(2L).head(HEAD).projectId(PROJECT_ID).build();
+    static final Pull UPDATED_PULL = Pull.builder().id(2L).head(NEW_HEAD).projectId(PROJECT_ID).build();
+    static final String CELL = "src/main/java/Cell.java";
+    static final String SSTABLE = "src/main/java/SSTable.java";
+
+    final ProjectRepo projectRepo = mock(ProjectRepo.class);
+    final PullRepo pullRepo = mock(PullRepo.class);
+    final CloneRepo cloneRepo = mock(CloneRepo.class);
+    final CodeLoader loader = mock(CodeLoader.class);
+    final AtomicLong cloneIds = new AtomicLong();
+    @TempDir
+    Path directory;
+    TokenCorpus tokenCorpus;
+    CloneDetectionService service;
+    PullRepo.OnHeadUpdate onHeadUpdate;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tokenCorpus = TokenCorpus.open(directory.resolve("corpus"), 1);
+        when(projectRepo.confById(PROJECT_ID))
+                .thenReturn(Mono.just(Project.Conf.builder().adminIds(List.of()).cloneMinLineCount(1).build()));
+        when(pullRepo.findByProjectId(PROJECT_ID)).thenReturn(Flux.just(SOURCE_PULL));
+        when(loader.loadFiles(SOURCE, FileFilter.SRC_JAVA)).thenReturn(Flux.just(
+                new FileEntity<>(SOURCE, CELL, SuffixTreeCloneDetectorTest.F1, "blob1"),
+                new FileEntity<>(SOURCE, SSTABLE, SuffixTreeCloneDetectorTest.F3, "blob3")));
+        when(loader.loadFiles(HEAD, FileFilter.SRC_JAVA)).thenReturn(Flux.just(
+                new FileEntity<>(HEAD, CELL, SuffixTreeCloneDetectorTest.F2, "blob2"),
+                new FileEntity<>(HEAD, SSTABLE, SuffixTreeCloneDetectorTest.F3, "blob3")));
+        when(cloneRepo.insert(anyCollection())).thenAnswer(invocation -> stored(invocation.getArgument(0)));
+        when(cloneRepo.applyDelta(anyCollection(), anyCollection())).thenAnswer(invocation -> stored(invocation.getArgument(1)));
+
+        service = new CloneDetectionService(projectRepo, pullRepo, cloneRepo, loader, tokenCorpus);
+        final var onHeadUpdateCaptor = ArgumentCaptor.forClass(PullRepo.OnHeadUpdate.class);
+        verify(pullRepo).addOnHeadUpdate(onHeadUpdateCaptor.capture());
+        onHeadUpdate = onHeadUpdateCaptor.getValue();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        tokenCorpus.close();
+    }
+
+    @Test
+    void testRefreshKeepsDetectedClonesAndDeletesStaleOnes() {
+        final var detected = detectClones(PULL);
+        assertFalse(detected.isEmpty());
+        final var stale = detected.get(0).toBuilder().id(100L).targetFromLine(1000).targetToLine(1001).build();
+        final var stored = new ArrayList<>(detected);
+        stored.add(stale);
+        when(cloneRepo.findByTargetPullId(PULL.getId())).thenReturn(Flux.fromIterable(stored));
+
+        final var refreshed = refreshClones(PULL);
+        assertEquals(ids(detected), ids(refreshed));
+        verify(cloneRepo).applyDelta(List.of(100L), List.of());
+
+        when(cloneRepo.findByTargetPullId(UPDATED_PULL.getId())).thenReturn(Flux.fromIterable(refreshed));
+        when(loader.loadFiles(NEW_HEAD, FileFilter.SRC_JAVA)).thenReturn(Flux.just(
+                new FileEntity<>(NEW_HEAD, CELL, SuffixTreeCloneDetectorTest.F2, "blob2"),
+                new FileEntity<>(NEW_HEAD, SSTABLE, SuffixTreeCloneDetectorTest.F3, "blob3")));
+        onHeadUpdate.onHeadUpdate(UPDATED_PULL, HEAD);
+
+        final var refreshedAfterHeadUpdate = refreshClones(UPDATED_PULL);
+        assertEquals(refreshed.size(), refreshedAfterHeadUpdate.size());
+        assertTrue(refreshedAfterHeadUpdate.stream().allMatch(clone -> clone.getTargetSnapshot().equals(NEW_HEAD)));
+        verify(cloneRepo).applyDelta(
+                argThat(obsoleteIds -> Set.copyOf(obsoleteIds).equals(ids(refreshed))),
+                argThat(newClones -> newClones.size() == refreshed.size()));
+    }
+
+    @Test
+    void testClonesOfUnchangedFilesAreCarriedOverToNewHead() {
+        final var detected = detectClones(PULL);
+        assertTrue(detected.stream().anyMatch(clone -> clone.getTargetFile().equals(CELL)));
+        assertTrue(detected.stream().anyMatch(clone -> clone.getTargetFile().equals(SSTABLE)));
+        when(cloneRepo.findByTargetCommitSnapshotSha(HEAD.getSha())).thenReturn(Flux.fromIterable(detected));
+        when(loader.loadDiff(HEAD, NEW_HEAD, FileFilter.SRC_JAVA)).thenReturn(Flux.just(DiffEntry.of(
+                new FileEntity<>(HEAD, CELL, null, "blob2"),
+                new FileEntity<>(NEW_HEAD, CELL, "public class Cell {\n}\n", "blob4"))));
+
+        onHeadUpdate.onHeadUpdate(UPDATED_PULL, HEAD);
+        final var carriedOver = detectClones(UPDATED_PULL);
+
+        final var expected = detected
+                .stream()
+                .filter(clone -> clone.getTargetFile().equals(SSTABLE))
+                .map(clone -> clone.toBuilder().targetSnapshot(NEW_HEAD).build())
+                .map(CloneDetectionServiceTest::snippets)
+                .collect(toSet());
+        assertEquals(expected, carriedOver.stream().map(CloneDetectionServiceTest::snippets).collect(toSet()));
+        verify(loader, never()).loadFiles(eq(NEW_HEAD), any());
+    }
+
+    List<Clone> detectClones(final Pull pull) {
+        final var clones = new ArrayList<Clone>();
+        StepVerifier.create(service.detectClones(pull))
+                .recordWith(() -> clones)
+                .thenConsumeWhile(clone -> true)
+                .verifyComplete();
+        return clones;
+    }
+
+    List<Clone> refreshClones(final Pull pull) {
+        final var clones = service.refreshClones(pull).collectList().block();
+        assertNotNull(clones);
+        return clones;
+    }
+
+    Flux<Clone> stored(final Collection<Clone> clones) {
+        return Flux.fromIterable(clones).map(clone -> clone.toBuilder().id(cloneIds.incrementAndGet()).build());
+    }
+
+    static Set<Long> ids(final List<Clone> clones) {
+        return clones.stream().map(Clone::getId).collect(toSet());
+    }
+
+    /// Clones are equal by their ids, so they are compared by their snippets
+    static List<Object> snippets(final Clone clone) {
+        return List.of(
+                clone.getTargetSnapshot(), clone.getTargetFile(), clone.getTargetFromLine(), clone.getTargetToLine(),
+                clone.getSourceSnapshot(), clone.getSourceFile(), clone.getSourceFromLine(), clone.getSourceToLine()
+        );
+    }
+}
@@ -0,0 +1,58 @@
+package org.accula.api.token.corpus;
+
+import org.accula.api.code.FileEntity;
+import org.accula.api.token.TokenProvider;
+import org.accula.api.token.TokenStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Anton Lamtev
+ */
+class CachingTokenProviderTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void testStoredBlobsAreNotTokenizedAgain() throws IOException {
+        final var tokenizedFileCount = new AtomicInteger();
+        final TokenProvider<String> tokenProvider = new TokenProvider<>() {
+            @Override
+            public Flux<TokenStream<String>> tokenStreams(final Flux<FileEntity<String>> files) {
+                return files
+                        .doOnNext(file -> tokenizedFileCount.incrementAndGet())
+                        .map(file -> TokenStream.builder(file.getRef(), "method", file.getName())
+                                .add("IDENTIFIER", 1, 1)
+                                .build());
+            }
+
+            @Override
+            public int version() {
+                return 1;
+            }
+        };
+
+        try (var corpus = TokenCorpus.open(directory.resolve("corpus"), tokenProvider.version())) {
+            final var cachingTokenProvider = new CachingTokenProvider<>(tokenProvider, corpus);
+            final var files = Flux.just(
+                    new FileEntity<>("ref1", "A.java", "content", "blob1"),
+                    new FileEntity<>("ref2", "B.java", "content", "blob1"),
+                    new FileEntity<>("ref3", "C.java", "content", null),
+                    new FileEntity<>("ref4", "D.java", "content", null));
+
+            StepVerifier.create(cachingTokenProvider.tokenStreams(files)
+                    .map(method -> method.getRef() + ":" + method.getFilename()))
+                    .expectNext("ref1:A.java", "ref2:B.java", "ref3:C.java", "ref4:D.java")
+                    .verifyComplete();
+            assertEquals(3, tokenizedFileCount.get());
+        }
+    }
+}
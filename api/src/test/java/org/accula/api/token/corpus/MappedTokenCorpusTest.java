@@ -0,0 +1,95 @@
+package org.accula.api.token.corpus;
+
+import org.accula.api.token.TokenStream;
+import org.accula.api.token.corpus.TokenCorpus.FileBlob;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Anton Lamtev
+ */
+class MappedTokenCorpusTest {
+    static final List<TokenStream<String>> METHODS = List.of(
+            TokenStream.builder("ref", "getKey", "Cell.java")
+                    .add("IDENTIFIER", 3, 3)
+                    .add("DOT", 3, 3)
+                    .add("RETURN_KEYWORD", 4, 5)
+                    .build(),
+            TokenStream.builder("ref", "getValue", "Cell.java")
+                    .add("IDENTIFIER", 7, 7)
+                    .build());
+    static final List<FileBlob> FILES = List.of(new FileBlob("src/main/java/Cell.java", "blob1"));
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testTokensSurviveReopening() throws IOException {
+        final var file = directory.resolve("corpus");
+        try (var corpus = TokenCorpus.open(file, 1)) {
+            assertFalse(corpus.containsBlob("blob1"));
+            corpus.addBlob("blob1", METHODS);
+            corpus.addBlob("blob2", List.of());
+            assertEquals(tokens(METHODS), tokens(corpus.methods("blob1", "ref")));
+            corpus.addSnapshot("1/sha", FILES);
+        }
+        try (var corpus = TokenCorpus.open(file, 1)) {
+            assertTrue(corpus.containsBlob("blob1"));
+            assertTrue(corpus.containsBlob("blob2"));
+            assertEquals(tokens(METHODS), tokens(corpus.methods("blob1", "ref")));
+            assertEquals(List.of(), corpus.methods("blob2", "ref"));
+            assertEquals(Optional.of(FILES), corpus.files("1/sha"));
+        }
+    }
+
+    @Test
+    void testTornTailIsTruncated() throws IOException {
+        final var file = directory.resolve("corpus");
+        try (var corpus = TokenCorpus.open(file, 1)) {
+            corpus.addBlob("blob1", METHODS);
+            corpus.addSnapshot("1/sha", FILES);
+        }
+        try (var raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        try (var corpus = TokenCorpus.open(file, 1)) {
+            assertEquals(tokens(METHODS), tokens(corpus.methods("blob1", "ref")));
+            assertEquals(Optional.empty(), corpus.files("1/sha"));
+            corpus.addSnapshot("1/sha", FILES);
+            assertEquals(Optional.of(FILES), corpus.files("1/sha"));
+        }
+    }
+
+    @Test
+    void testTokenizerVersionChangeClearsCorpus() throws IOException {
+        final var file = directory.resolve("corpus");
+        try (var corpus = TokenCorpus.open(file, 1)) {
+            corpus.addBlob("blob1", METHODS);
+        }
+        try (var corpus = TokenCorpus.open(file, 2)) {
+            assertFalse(corpus.containsBlob("blob1"));
+        }
+        assertTrue(Files.size(file) > 0L);
+    }
+
+    static List<String> tokens(final List<TokenStream<String>> methods) {
+        return methods
+                .stream()
+                .flatMap(method -> method.tokens().stream())
+                .map(token -> String.join(":", token.getRef(), token.getString(), token.getMethodName(), token.getFilename(),
+                        String.valueOf(token.getFromLine()), String.valueOf(token.getToLine())))
+                .collect(toList());
+    }
+}
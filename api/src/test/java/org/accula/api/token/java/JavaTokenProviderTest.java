@@ -1,14 +1,23 @@
 package org.accula.api.token.java;
 
+import com.intellij.lang.java.JavaLanguage;
+import com.intellij.psi.PsiElement;
 import org.accula.api.clone.suffixtree.SuffixTreeCloneDetectorTest;
 import org.accula.api.code.FileEntity;
+import org.accula.api.token.Token;
 import org.accula.api.token.TokenProvider;
+import org.accula.api.token.TraverseUtils;
+import org.accula.api.token.psi.java.JavaPsiFileFactoryPool;
+import org.accula.api.token.psi.java.JavaPsiUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import reactor.core.publisher.Flux;
 import reactor.test.StepVerifier;
 
 import java.util.Collection;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
 
 /**
  * @author Anton Lamtev
@@ -50,4 +59,36 @@ class JavaTokenProviderTest {
                 })
                 .verifyComplete();
     }
+
+    @Test
+    void testSameTokensAsDocumentLines() {
+        final var files = Stream.of(SuffixTreeCloneDetectorTest.F1, SuffixTreeCloneDetectorTest.F2,
+                                    SuffixTreeCloneDetectorTest.F3, SuffixTreeCloneDetectorTest.F4)
+                .map(content -> new FileEntity<>("ref", "File.java", content))
+                .collect(toList());
+        final var expected = JavaPsiFileFactoryPool.instance().use(psiFileFactory -> files
+                .stream()
+                .flatMap(file -> JavaPsiUtils
+                        .methods(psiFileFactory.createFileFromText(file.getName(), JavaLanguage.INSTANCE, file.getContent()))
+                        .stream()
+                        .map(method -> TraverseUtils
+                                .dfs(method.getBody(), TraverseUtils.stream(PsiElement::getChildren))
+                                .filter(JavaPsiUtils::isValuableToken)
+                                .map(token -> Token.of(token, method.getName(), file.getRef()))
+                                .map(JavaTokenProviderTest::describe)
+                                .collect(toList())))
+                .collect(toList()));
+
+        StepVerifier.create(tokenProvider.tokensByMethods(Flux.fromIterable(files))
+                .map(method -> method.stream().map(JavaTokenProviderTest::describe).collect(toList()))
+                .collectList())
+                .expectNext(expected)
+                .verifyComplete();
+    }
+
+    static String describe(final Token<String> token) {
+        return String.join(":",
+                token.getString(), token.getMethodName(), token.getFilename(),
+                String.valueOf(token.getFromLine()), String.valueOf(token.getToLine()));
+    }
 }
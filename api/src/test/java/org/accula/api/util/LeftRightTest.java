@@ -0,0 +1,109 @@
+package org.accula.api.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Anton Lamtev
+ */
+class LeftRightTest {
+    @Test
+    void testReadersNeverSeeChangesInProgress() throws InterruptedException {
+        final var leftRight = new LeftRight<>(() -> new int[2]);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final var torn = new AtomicBoolean();
+        final int writers = 4;
+        final int changesPerWriter = 10_000;
+        for (int i = 0; i < writers; ++i) {
+            executor.execute(() -> {
+                for (int change = 0; change < changesPerWriter; ++change) {
+                    leftRight.submit(state -> {
+                        ++state[0];
+                        ++state[1];
+                    });
+                }
+            });
+        }
+        for (int i = 0; i < writers; ++i) {
+            executor.execute(() -> {
+                long lastGeneration = 0L;
+                for (int read = 0; read < changesPerWriter; ++read) {
+                    final long generation = leftRight.readGeneration((state, g) -> {
+                        if (state[0] != state[1]) {
+                            torn.set(true);
+                        }
+                        return g;
+                    });
+                    if (generation < lastGeneration) {
+                        torn.set(true);
+                    }
+                    lastGeneration = generation;
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        leftRight.flush();
+        assertFalse(torn.get());
+        assertEquals(0L, leftRight.pendingChangeCount());
+        assertEquals(writers * changesPerWriter, leftRight.read(state -> state[0]));
+    }
+
+    @Test
+    void testDerivedStateIsRefreshedOncePerBatch() {
+        final var derivations = new AtomicInteger();
+        final var leftRight = new LeftRight<>(() -> new int[2], (state, upToDateState) -> {
+            if (upToDateState != null) {
+                state[1] = upToDateState[1];
+                return;
+            }
+            derivations.incrementAndGet();
+            state[1] = state[0] * 10;
+        });
+        for (int change = 0; change < 3; ++change) {
+            leftRight.submit(state -> ++state[0]);
+        }
+        leftRight.flush();
+
+        assertEquals(3, derivations.get());
+        assertEquals(30, leftRight.read(state -> state[1]));
+        leftRight.submit(state -> ++state[0]);
+        assertEquals(40, leftRight.read(state -> state[1]));
+    }
+
+    @Test
+    void testRebuildBuildsOneCopyAndReplaysChangesPublishedMeanwhile() {
+        final var leftRight = new LeftRight<>(() -> new int[2]);
+        final var rebuilds = new AtomicInteger();
+        final var copies = new AtomicInteger();
+        leftRight.submit(state -> ++state[0]);
+        leftRight.rebuild(state -> state[0], count -> {
+            rebuilds.incrementAndGet();
+            /// Published to the former copies right away, since the writer lock is not held by the rebuild
+            leftRight.submit(state -> ++state[0]);
+            return new int[]{count, count * 10};
+        }, state -> {
+            copies.incrementAndGet();
+            return state.clone();
+        });
+
+        assertEquals(1, rebuilds.get());
+        assertEquals(1, copies.get());
+        assertEquals(2, leftRight.read(state -> state[0]));
+        assertEquals(10, leftRight.read(state -> state[1]));
+        /// Both rebuilt copies get the subsequent changes
+        leftRight.submit(state -> ++state[1]);
+        leftRight.submit(state -> ++state[1]);
+        assertEquals(12, leftRight.read(state -> state[1]));
+    }
+}